@@ -1,14 +1,26 @@
 import java.time.*;
 import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Represents an individual appointment with date, time, and purpose.
+ *
+ * One instance is shared by every diary, resource booking and index that
+ * holds the appointment, so its time and purpose never change. To move it,
+ * use UserManager.rescheduleAppointment, which replaces it everywhere.
  */
 public class Appointment {
-    private LocalDate date;
-    private LocalTime startTime;
-    private LocalTime endTime;
-    private String purpose;
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("h:mm a");
+    
+    private final LocalDate date;
+    private final LocalTime startTime;
+    private final LocalTime endTime;
+    private final String purpose;
+    private volatile List<String> participants;
+    private final List<String> resources;
+    // Number of diaries in a UserManager currently holding this instance
+    private final AtomicInteger holders = new AtomicInteger();
     
     /**
      * Creates a new appointment.
@@ -18,10 +30,40 @@ public class Appointment {
      * @param purpose The purpose/description of the appointment
      */
     public Appointment(LocalDate date, LocalTime startTime, LocalTime endTime, String purpose) {
+        this(date, startTime, endTime, purpose, Collections.<String>emptyList());
+    }
+    
+    /**
+     * Creates a new appointment shared by several users' diaries.
+     * @param date The date of the appointment
+     * @param startTime The start time of the appointment
+     * @param endTime The end time of the appointment
+     * @param purpose The purpose/description of the appointment
+     * @param participants Usernames of every diary holding this appointment
+     */
+    public Appointment(LocalDate date, LocalTime startTime, LocalTime endTime, String purpose,
+                       List<String> participants) {
+        this(date, startTime, endTime, purpose, participants, Collections.<String>emptyList());
+    }
+    
+    /**
+     * Creates a new appointment shared by several users' diaries that also
+     * occupies shared resources such as rooms or equipment.
+     * @param date The date of the appointment
+     * @param startTime The start time of the appointment
+     * @param endTime The end time of the appointment
+     * @param purpose The purpose/description of the appointment
+     * @param participants Usernames of every diary holding this appointment
+     * @param resources Names of the resources booked for this appointment
+     */
+    public Appointment(LocalDate date, LocalTime startTime, LocalTime endTime, String purpose,
+                       List<String> participants, List<String> resources) {
         this.date = date;
         this.startTime = startTime;
         this.endTime = endTime;
         this.purpose = purpose;
+        this.participants = Collections.unmodifiableList(new ArrayList<>(participants));
+        this.resources = Collections.unmodifiableList(new ArrayList<>(resources));
     }
     
     // Getters
@@ -41,17 +83,41 @@ public class Appointment {
         return purpose; 
     }
     
-    // Setters for rescheduling
-    public void setDate(LocalDate date) { 
-        this.date = date; 
+    public List<String> getParticipants() { 
+        return participants; 
     }
     
-    public void setStartTime(LocalTime startTime) { 
-        this.startTime = startTime; 
+    public List<String> getResources() { 
+        return resources; 
+    }
+    
+    /**
+     * Gets how many diaries in a UserManager currently hold this instance.
+     * @return The number of diaries, 0 once it has been removed from all
+     */
+    int getHolderCount() {
+        return holders.get();
     }
     
-    public void setEndTime(LocalTime endTime) { 
-        this.endTime = endTime; 
+    int addHolder() {
+        return holders.incrementAndGet();
+    }
+    
+    int removeHolder() {
+        return holders.decrementAndGet();
+    }
+    
+    /**
+     * Drops a deleted user from the participants. The list is replaced, not
+     * changed in place, so readers holding the old list are unaffected.
+     * @param username The user to drop
+     */
+    synchronized void removeParticipant(String username) {
+        if (participants.contains(username)) {
+            List<String> remaining = new ArrayList<>(participants);
+            remaining.remove(username);
+            participants = Collections.unmodifiableList(remaining);
+        }
     }
     
     /**
@@ -76,11 +142,10 @@ public class Appointment {
     
     @Override
     public String toString() {
-        DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("h:mm a");
         return String.format("%s from %s to %s - %s", 
             date, 
-            startTime.format(timeFormatter), 
-            endTime.format(timeFormatter), 
+            startTime.format(TIME_FORMATTER), 
+            endTime.format(TIME_FORMATTER), 
             purpose);
     }
     
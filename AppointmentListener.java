@@ -0,0 +1,25 @@
+/**
+ * Receives a callback whenever an appointment enters or leaves a user's
+ * diary, so derived data such as search indexes can be kept up to date
+ * incrementally. A reschedule is reported as a removal followed by an
+ * addition.
+ *
+ * Callbacks run on the thread making the change while that user's diary
+ * is locked, so implementations must be thread-safe, quick, and must not
+ * call back into User or UserManager.
+ */
+public interface AppointmentListener {
+    /**
+     * Called after an appointment has been added to a diary.
+     * @param username The owner of the diary
+     * @param apt The appointment that was added
+     */
+    void appointmentAdded(String username, Appointment apt);
+    
+    /**
+     * Called after an appointment has been removed from a diary.
+     * @param username The owner of the diary
+     * @param apt The appointment that was removed
+     */
+    void appointmentRemoved(String username, Appointment apt);
+}
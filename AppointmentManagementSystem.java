@@ -1,3 +1,5 @@
+import java.io.*;
+
 /**
  * Main application class for the Appointment Management System.
  * This class serves as the entry point and main controller for the application.
@@ -7,7 +9,15 @@ public class AppointmentManagementSystem {
     private boolean running;
     
     public AppointmentManagementSystem() {
-        this.ui = new ConsoleUI();
+        this(new UserManager());
+    }
+    
+    /**
+     * Creates the application over existing users, e.g. a sharded deployment.
+     * @param userManager The users to manage
+     */
+    public AppointmentManagementSystem(UserDirectory userManager) {
+        this.ui = new ConsoleUI(userManager);
         this.running = true;
     }
     
@@ -65,9 +75,18 @@ public class AppointmentManagementSystem {
     
     /**
      * Main entry point for the application.
-     * @param args Command line arguments (not used)
+     * @param args Optional "--shards host:port,host:port" to use running
+     *             ShardServer processes instead of in-memory users
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("--shards")) {
+            try (ShardedUserManager sharded =
+                     new ShardedUserManager(ShardedUserManager.parseAddresses(args[1]))) {
+                new AppointmentManagementSystem(sharded).run();
+            }
+            return;
+        }
+        
         AppointmentManagementSystem system = new AppointmentManagementSystem();
         system.run();
     }
@@ -0,0 +1,459 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Moves all of a provider's appointments out of an outage, e.g. when a
+ * doctor calls in sick.
+ *
+ * Appointments are taken from a priority queue, earliest first, and each
+ * is placed greedily into the earliest slot after the outage that is free
+ * for the provider and every other participant, has room in every booked
+ * resource, lies within clinic hours, and is no later than the maximum
+ * delay allows. Free time is looked up in per-person, per-day minute
+ * bitmaps that are built once and updated as slots are handed out, so
+ * placing a full day of appointments takes milliseconds.
+ *
+ * All moves are then applied in one batch while every affected diary and
+ * resource is locked. Anything that could not be placed, or whose diary
+ * changed in the meantime, stays where it was and is reported.
+ */
+public class BatchRescheduler {
+    private final UserManager userManager;
+    private final LocalTime opening;
+    private final LocalTime closing;
+    private final int granularityMinutes;
+
+    /**
+     * A single appointment moved by the rescheduler.
+     */
+    public static class Move {
+        private final Appointment original;
+        private final Appointment rescheduled;
+
+        public Move(Appointment original, Appointment rescheduled) {
+            this.original = original;
+            this.rescheduled = rescheduled;
+        }
+
+        public Appointment getOriginal() {
+            return original;
+        }
+
+        public Appointment getRescheduled() {
+            return rescheduled;
+        }
+
+        @Override
+        public String toString() {
+            return original + " -> " + rescheduled;
+        }
+    }
+
+    /**
+     * Outcome of a batch: the moves applied and the appointments left alone.
+     */
+    public static class Result {
+        private final List<Move> moves;
+        private final List<Appointment> unplaced;
+
+        public Result(List<Move> moves, List<Appointment> unplaced) {
+            this.moves = Collections.unmodifiableList(moves);
+            this.unplaced = Collections.unmodifiableList(unplaced);
+        }
+
+        public List<Move> getMoves() {
+            return moves;
+        }
+
+        public List<Appointment> getUnplaced() {
+            return unplaced;
+        }
+    }
+
+    /**
+     * Creates a rescheduler using clinic hours of 8:00 AM to 6:00 PM and
+     * start times on a 5-minute grid.
+     * @param userManager The users whose diaries are changed
+     */
+    public BatchRescheduler(UserManager userManager) {
+        this(userManager, LocalTime.of(8, 0), LocalTime.of(18, 0), 5);
+    }
+
+    /**
+     * Creates a rescheduler with specific clinic hours.
+     * @param userManager The users whose diaries are changed
+     * @param opening Earliest start time for a moved appointment
+     * @param closing Latest end time for a moved appointment
+     * @param granularityMinutes Start times are multiples of this many minutes
+     */
+    public BatchRescheduler(UserManager userManager, LocalTime opening, LocalTime closing,
+                            int granularityMinutes) {
+        this.userManager = userManager;
+        this.opening = opening;
+        this.closing = closing;
+        this.granularityMinutes = Math.max(1, granularityMinutes);
+    }
+
+    /**
+     * Moves every appointment of the user dated within [from, to] to a
+     * later date, keeping its duration, purpose, participants and resources.
+     * @param username The provider who is unavailable
+     * @param from First day of the outage
+     * @param to Last day of the outage
+     * @param maxDelay How much later than its original start an appointment may move
+     * @return The moves applied and the appointments that could not be moved
+     */
+    public Result reschedule(String username, LocalDate from, LocalDate to, Duration maxDelay) {
+        User provider = userManager.getUser(username);
+        if (provider == null || from == null || to == null || from.isAfter(to)) {
+            return new Result(new ArrayList<Move>(), new ArrayList<Appointment>());
+        }
+
+        List<Appointment> affected = new ArrayList<>();
+        for (Appointment apt : provider.getAppointments()) {
+            if (!apt.getDate().isBefore(from) && !apt.getDate().isAfter(to)) {
+                affected.add(apt);
+            }
+        }
+
+        Planner planner = new Planner(username, affected, to, maxDelay);
+        List<Move> planned = planner.plan();
+        return apply(planned, planner.unplaced);
+    }
+
+    // Applying the plan
+
+    /**
+     * Applies all planned moves under one set of locks. Moved originals are
+     * taken out first so that moves may reuse each other's old slots.
+     */
+    private Result apply(List<Move> planned, List<Appointment> unplaced) {
+        List<Move> applied = new ArrayList<>();
+        if (planned.isEmpty()) {
+            return new Result(applied, unplaced);
+        }
+
+        Set<String> usernames = new TreeSet<>();
+        Set<String> resourceNames = new TreeSet<>();
+        for (Move move : planned) {
+            usernames.addAll(move.getRescheduled().getParticipants());
+            resourceNames.addAll(move.getOriginal().getResources());
+        }
+        // Parties or resources deleted since planning are left out
+        usernames.removeIf(name -> userManager.getUser(name) == null);
+        resourceNames.removeIf(name -> userManager.getResource(name) == null);
+
+        List<ReentrantLock> locks = userManager.lockGroup(usernames, resourceNames);
+        if (locks == null) {
+            for (Move move : planned) {
+                unplaced.add(move.getOriginal());
+            }
+            return new Result(applied, unplaced);
+        }
+        try {
+            List<Move> removed = new ArrayList<>();
+            for (Move move : planned) {
+                List<String> parties = move.getRescheduled().getParticipants();
+                if (removeEverywhere(parties, move.getOriginal())) {
+                    removed.add(move);
+                } else {
+                    unplaced.add(move.getOriginal());
+                }
+            }
+            for (Move move : removed) {
+                List<String> parties = move.getRescheduled().getParticipants();
+                if (addEverywhere(parties, move.getRescheduled())) {
+                    applied.add(move);
+                } else {
+                    restoreEverywhere(parties, move.getOriginal());
+                    unplaced.add(move.getOriginal());
+                }
+            }
+        } finally {
+            UserManager.unlockGroup(locks);
+        }
+        return new Result(applied, unplaced);
+    }
+
+    /**
+     * Removes an appointment from all parties, provided it is still
+     * unchanged in every diary. Its resources are released by the
+     * UserManager once the last diary drops it.
+     */
+    private boolean removeEverywhere(List<String> usernames, Appointment apt) {
+        List<User> parties = existingUsers(usernames);
+        for (User user : parties) {
+            if (user.getAppointmentByStart(apt.getDate(), apt.getStartTime()) != apt) {
+                return false;
+            }
+        }
+        for (User user : parties) {
+            user.removeAppointment(apt);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an appointment to all parties and books its resources, or
+     * changes nothing if any of them is busy.
+     */
+    private boolean addEverywhere(List<String> usernames, Appointment apt) {
+        List<User> parties = existingUsers(usernames);
+        List<Resource> resources = new ArrayList<>();
+        for (String name : apt.getResources()) {
+            Resource resource = userManager.getResource(name);
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+
+        for (User user : parties) {
+            if (!user.canSchedule(apt.getDate(), apt.getStartTime(), apt.getEndTime())) {
+                return false;
+            }
+        }
+        for (Resource resource : resources) {
+            if (!resource.canBook(apt.getDate(), apt.getStartTime(), apt.getEndTime())) {
+                return false;
+            }
+        }
+        for (Resource resource : resources) {
+            resource.addBooking(apt.getDate(), apt.getStartTime(), apt.getEndTime());
+        }
+        for (User user : parties) {
+            user.addAppointment(apt);
+        }
+        return true;
+    }
+
+    /**
+     * Puts back an appointment taken out by removeEverywhere. No checks are
+     * made, as the slot was held a moment ago under the same locks.
+     */
+    private void restoreEverywhere(List<String> usernames, Appointment apt) {
+        // Resources were only released if no diary kept the appointment
+        List<String> released = apt.getHolderCount() == 0
+            ? apt.getResources() : Collections.<String>emptyList();
+        for (String name : released) {
+            Resource resource = userManager.getResource(name);
+            if (resource != null) {
+                resource.addBooking(apt.getDate(), apt.getStartTime(), apt.getEndTime());
+            }
+        }
+        for (User user : existingUsers(usernames)) {
+            user.addAppointment(apt);
+        }
+    }
+
+    private List<User> existingUsers(List<String> usernames) {
+        List<User> parties = new ArrayList<>();
+        for (String name : usernames) {
+            User user = userManager.getUser(name);
+            if (user != null) {
+                parties.add(user);
+            }
+        }
+        return parties;
+    }
+
+    /**
+     * Gets the users whose diaries still hold this appointment: the provider
+     * plus any participant who has not cancelled it individually.
+     */
+    private Set<String> holdersOf(String provider, Appointment apt) {
+        Set<String> holders = new TreeSet<>();
+        holders.add(provider);
+        for (String name : apt.getParticipants()) {
+            User user = userManager.getUser(name);
+            if (user != null && user.getAppointmentByStart(apt.getDate(), apt.getStartTime()) == apt) {
+                holders.add(name);
+            }
+        }
+        return holders;
+    }
+
+    // Planning
+
+    /**
+     * Greedy placement over per-person free-slot bitmaps. Bitmaps are built
+     * from the diaries on first use, ignore the appointments being moved,
+     * and are updated as each appointment is placed.
+     */
+    private class Planner {
+        private final String provider;
+        private final List<Appointment> affected;
+        private final LocalDate outageEnd;
+        private final Duration maxDelay;
+        private final Set<Appointment> moving;
+        // username -> date -> busy minutes
+        private final Map<String, Map<LocalDate, BitSet>> busy;
+        // resource name -> date -> usage added by this plan
+        private final Map<String, Map<LocalDate, OccupancyTree>> plannedUsage;
+        private final List<Appointment> unplaced;
+
+        Planner(String provider, List<Appointment> affected, LocalDate outageEnd, Duration maxDelay) {
+            this.provider = provider;
+            this.affected = affected;
+            this.outageEnd = outageEnd;
+            this.maxDelay = maxDelay;
+            this.moving = Collections.newSetFromMap(new IdentityHashMap<Appointment, Boolean>());
+            this.moving.addAll(affected);
+            this.busy = new HashMap<>();
+            this.plannedUsage = new HashMap<>();
+            this.unplaced = new ArrayList<>();
+        }
+
+        List<Move> plan() {
+            // Earliest appointment first; among equals, the one with more
+            // parties, which is harder to fit
+            PriorityQueue<Appointment> queue = new PriorityQueue<>(Math.max(1, affected.size()),
+                (a, b) -> {
+                    int dateCompare = a.getDate().compareTo(b.getDate());
+                    if (dateCompare != 0) return dateCompare;
+                    int timeCompare = a.getStartTime().compareTo(b.getStartTime());
+                    if (timeCompare != 0) return timeCompare;
+                    return Integer.compare(b.getParticipants().size(), a.getParticipants().size());
+                });
+            queue.addAll(affected);
+
+            List<Move> moves = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                Appointment apt = queue.poll();
+                Appointment placed = place(apt);
+                if (placed == null) {
+                    unplaced.add(apt);
+                } else {
+                    moves.add(new Move(apt, placed));
+                }
+            }
+            return moves;
+        }
+
+        private Appointment place(Appointment apt) {
+            int start = DateTimeUtils.toMinuteOfDay(apt.getStartTime());
+            int duration = DateTimeUtils.toMinuteOfDay(apt.getEndTime()) - start;
+            int close = DateTimeUtils.toMinuteOfDay(closing);
+            if (duration <= 0 || close - DateTimeUtils.toMinuteOfDay(opening) < duration) {
+                return null;
+            }
+
+            LocalDateTime latest = LocalDateTime.of(apt.getDate(), apt.getStartTime()).plus(maxDelay);
+            LocalDate firstDay = outageEnd.plusDays(1);
+            LocalDate today = DateTimeUtils.getCurrentDate();
+            if (firstDay.isBefore(today)) {
+                firstDay = today;
+            }
+            LocalDate lastDay = latest.toLocalDate();
+            if (lastDay.isAfter(DateTimeUtils.getMaxDate())) {
+                lastDay = DateTimeUtils.getMaxDate();
+            }
+
+            Set<String> parties = holdersOf(provider, apt);
+            for (LocalDate day = firstDay; !day.isAfter(lastDay); day = day.plusDays(1)) {
+                int latestStart = day.equals(latest.toLocalDate())
+                    ? Math.min(close - duration, DateTimeUtils.toMinuteOfDay(latest.toLocalTime()))
+                    : close - duration;
+                int open = DateTimeUtils.toMinuteOfDay(opening);
+                if (day.equals(today)) {
+                    open = Math.max(open, DateTimeUtils.toMinuteOfDay(LocalTime.now()) + 1);
+                }
+
+                BitSet combined = new BitSet(OccupancyTree.MINUTES_PER_DAY);
+                for (String party : parties) {
+                    combined.or(busyMinutes(party, day));
+                }
+
+                int slot = firstFreeSlot(combined, open, latestStart, duration, apt.getResources(), day);
+                if (slot >= 0) {
+                    LocalTime newStart = DateTimeUtils.fromMinuteOfDay(slot);
+                    LocalTime newEnd = DateTimeUtils.fromMinuteOfDay(slot + duration);
+                    for (String party : parties) {
+                        busyMinutes(party, day).set(slot, slot + duration);
+                    }
+                    for (String name : apt.getResources()) {
+                        plannedUsage.computeIfAbsent(name, n -> new HashMap<>())
+                            .computeIfAbsent(day, d -> new OccupancyTree())
+                            .add(slot, slot + duration, 1);
+                    }
+                    return new Appointment(day, newStart, newEnd, apt.getPurpose(),
+                                           new ArrayList<>(parties), apt.getResources());
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Finds the earliest grid-aligned start in [open, latestStart] whose
+         * whole duration is free in the bitmap and in every resource.
+         * @return The start minute, or -1 if there is none
+         */
+        private int firstFreeSlot(BitSet taken, int open, int latestStart, int duration,
+                                  List<String> resources, LocalDate day) {
+            int slot = align(open);
+            while (slot <= latestStart) {
+                int free = align(taken.nextClearBit(slot));
+                if (free > latestStart) {
+                    return -1;
+                }
+                int nextBusy = taken.nextSetBit(free);
+                if (nextBusy >= 0 && nextBusy < free + duration) {
+                    slot = nextBusy + 1;
+                    continue;
+                }
+                if (resourcesFree(resources, day, free, free + duration)) {
+                    return free;
+                }
+                slot = free + granularityMinutes;
+            }
+            return -1;
+        }
+
+        /**
+         * Conservative capacity check: the resource's current peak plus the
+         * peak this plan adds must stay below capacity.
+         */
+        private boolean resourcesFree(List<String> resources, LocalDate day, int from, int to) {
+            for (String name : resources) {
+                Resource resource = userManager.getResource(name);
+                if (resource == null) {
+                    continue;
+                }
+                int usage = resource.getMaxConcurrentUsage(day, DateTimeUtils.fromMinuteOfDay(from),
+                                                           DateTimeUtils.fromMinuteOfDay(to));
+                Map<LocalDate, OccupancyTree> planned = plannedUsage.get(name);
+                if (planned != null && planned.containsKey(day)) {
+                    usage += planned.get(day).maxUsage(from, to);
+                }
+                if (usage >= resource.getCapacity()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private BitSet busyMinutes(String username, LocalDate day) {
+            Map<LocalDate, BitSet> days = busy.computeIfAbsent(username, n -> new HashMap<>());
+            BitSet minutes = days.get(day);
+            if (minutes == null) {
+                minutes = new BitSet(OccupancyTree.MINUTES_PER_DAY);
+                User user = userManager.getUser(username);
+                if (user != null) {
+                    for (Appointment apt : user.getAppointmentsByDate(day)) {
+                        if (!moving.contains(apt)) {
+                            minutes.set(DateTimeUtils.toMinuteOfDay(apt.getStartTime()),
+                                        DateTimeUtils.toMinuteOfDay(apt.getEndTime()));
+                        }
+                    }
+                }
+                days.put(day, minutes);
+            }
+            return minutes;
+        }
+
+        private int align(int minute) {
+            int remainder = minute % granularityMinutes;
+            return remainder == 0 ? minute : minute + granularityMinutes - remainder;
+        }
+    }
+}
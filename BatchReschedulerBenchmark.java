@@ -0,0 +1,411 @@
+import java.time.*;
+import java.util.*;
+
+/**
+ * Benchmark and self-check for BatchRescheduler. Each round builds a fresh
+ * outage day: one doctor with a full day of short appointments, each shared
+ * with a patient and some with a nurse and an exam room. The following
+ * days are already partly booked for the doctor, patients, nurses and
+ * rooms. The doctor is then rescheduled out of the outage and the round
+ * checks that:
+ * - no diary holds overlapping appointments and no room is over capacity;
+ * - every appointment was either moved or reported, and reported ones are
+ *   unchanged;
+ * - every move keeps its duration, purpose, parties and rooms, starts after
+ *   the outage on the time grid within clinic hours, and is delayed by no
+ *   more than the maximum delay;
+ * - placement followed the priority order: no move could have used an
+ *   earlier slot, and no reported appointment had any slot left, given the
+ *   appointments placed before it.
+ *
+ * Usage: java BatchReschedulerBenchmark [appointments] [maxDelayDays] [rounds] [maxMillis]
+ */
+public class BatchReschedulerBenchmark {
+    private static final LocalTime OPENING = LocalTime.of(8, 0);
+    private static final LocalTime CLOSING = LocalTime.of(18, 0);
+    private static final int GRID_MINUTES = 3;
+    private static final int NURSES = 3;
+    private static final int ROOMS = 4;
+    private static final int ROOM_CAPACITY = 2;
+    private static final String DOCTOR = "doctor0";
+    private static final int OTHER_DOCTORS = 5;
+
+    private final int appointments;
+    private final Duration maxDelay;
+    private final List<LocalDate> days;
+    private final Random random;
+    private int failures;
+
+    public BatchReschedulerBenchmark(int appointments, Duration maxDelay, List<LocalDate> days,
+                                     long seed) {
+        this.appointments = appointments;
+        this.maxDelay = maxDelay;
+        this.days = days;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Builds an outage day, reschedules it and checks the result.
+     * @return Time taken by the reschedule in milliseconds
+     */
+    public double runRound() {
+        UserManager manager = createManager();
+        LocalDate outage = days.get(0);
+        List<Appointment> originals = manager.getUser(DOCTOR).getAppointmentsByDate(outage);
+
+        BatchRescheduler rescheduler =
+            new BatchRescheduler(manager, OPENING, CLOSING, GRID_MINUTES);
+        long began = System.nanoTime();
+        BatchRescheduler.Result result = rescheduler.reschedule(DOCTOR, outage, outage, maxDelay);
+        double millis = (System.nanoTime() - began) / 1e6;
+
+        verify(manager, originals, result);
+        System.out.printf("appointments=%d moved=%d unplaced=%d time=%.2f ms failures=%d%n",
+            originals.size(), result.getMoves().size(), result.getUnplaced().size(), millis, failures);
+        return millis;
+    }
+
+    /**
+     * Gets the number of failed checks over all rounds so far.
+     * @return Number of failures
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    // Setup
+
+    private UserManager createManager() {
+        UserManager manager = new UserManager();
+        manager.addUser(DOCTOR);
+        for (int i = 1; i <= OTHER_DOCTORS; i++) {
+            manager.addUser("doctor" + i);
+        }
+        for (int i = 0; i < NURSES; i++) {
+            manager.addUser("nurse" + i);
+        }
+        for (int i = 0; i < appointments; i++) {
+            manager.addUser("patient" + i);
+        }
+        for (int i = 0; i < ROOMS; i++) {
+            manager.addResource("room" + i, ROOM_CAPACITY);
+        }
+
+        // The outage day: back-to-back appointments filling clinic hours
+        int open = DateTimeUtils.toMinuteOfDay(OPENING);
+        int close = DateTimeUtils.toMinuteOfDay(CLOSING);
+        int length = Math.max(1, (close - open) / appointments);
+        for (int i = 0; i < appointments; i++) {
+            int start = open + (i * (close - open - length)) / Math.max(1, appointments - 1);
+            List<String> parties = new ArrayList<>(Arrays.asList(DOCTOR, "patient" + i));
+            if (i % 4 == 0) {
+                parties.add("nurse" + (i % NURSES));
+            }
+            List<String> rooms = i % 3 == 0
+                ? Collections.singletonList("room" + (i % ROOMS)) : Collections.<String>emptyList();
+            manager.scheduleGroupAppointment(parties, rooms, days.get(0),
+                                             DateTimeUtils.fromMinuteOfDay(start),
+                                             DateTimeUtils.fromMinuteOfDay(start + length),
+                                             "Consultation " + i);
+        }
+
+        // Later days are partly booked already
+        for (LocalDate day : days.subList(1, days.size())) {
+            manager.getUser(DOCTOR).scheduleAppointment(day, OPENING, OPENING.plusHours(2),
+                                                        "Ward round");
+            for (int i = 0; i < appointments; i++) {
+                if (random.nextInt(3) == 0) {
+                    bookRandom(manager, Collections.singletonList("patient" + i),
+                               Collections.<String>emptyList(), day, "Other appointment");
+                }
+            }
+            for (int i = 0; i < 40; i++) {
+                List<String> parties = Arrays.asList("doctor" + (1 + random.nextInt(OTHER_DOCTORS)),
+                                                     "nurse" + random.nextInt(NURSES));
+                bookRandom(manager, parties, Collections.singletonList("room" + random.nextInt(ROOMS)),
+                           day, "Procedure");
+            }
+        }
+        return manager;
+    }
+
+    private void bookRandom(UserManager manager, List<String> parties, List<String> rooms,
+                            LocalDate day, String purpose) {
+        int open = DateTimeUtils.toMinuteOfDay(OPENING);
+        int close = DateTimeUtils.toMinuteOfDay(CLOSING);
+        int length = 10 + random.nextInt(50);
+        int start = open + random.nextInt(close - open - length);
+        manager.scheduleGroupAppointment(parties, rooms, day, DateTimeUtils.fromMinuteOfDay(start),
+                                         DateTimeUtils.fromMinuteOfDay(start + length), purpose);
+    }
+
+    // Checks
+
+    private void verify(UserManager manager, List<Appointment> originals,
+                        BatchRescheduler.Result result) {
+        checkDiaries(manager);
+        checkRooms(manager);
+
+        Set<Appointment> reported = identitySet(result.getUnplaced());
+        Set<Appointment> moved = identitySet(new ArrayList<Appointment>());
+        for (BatchRescheduler.Move move : result.getMoves()) {
+            moved.add(move.getOriginal());
+            checkMove(manager, move);
+        }
+        for (Appointment apt : originals) {
+            check(moved.contains(apt) != reported.contains(apt), "moved or reported: " + apt);
+        }
+        for (Appointment apt : result.getUnplaced()) {
+            for (String party : apt.getParticipants()) {
+                User user = manager.getUser(party);
+                check(user.getAppointmentByStart(apt.getDate(), apt.getStartTime()) == apt,
+                      "reported appointment unchanged: " + apt);
+            }
+        }
+        checkGreedyOrder(manager, result);
+    }
+
+    private void checkDiaries(UserManager manager) {
+        for (String username : manager.getAllUsernames()) {
+            List<Appointment> diary = manager.getUser(username).getAppointments();
+            for (int i = 1; i < diary.size(); i++) {
+                Appointment prev = diary.get(i - 1);
+                Appointment apt = diary.get(i);
+                check(!prev.getDate().equals(apt.getDate())
+                        || !prev.conflictsWith(apt.getStartTime(), apt.getEndTime()),
+                      "no double booking for " + username + ": " + prev + " / " + apt);
+            }
+        }
+    }
+
+    /**
+     * Recounts room usage per minute from the diaries and compares it with
+     * the rooms' own occupancy and capacity.
+     */
+    private void checkRooms(UserManager manager) {
+        for (String room : manager.getAllResourceNames()) {
+            Resource resource = manager.getResource(room);
+            for (LocalDate day : days) {
+                int[] usage = roomUsage(manager, room, day, identitySet(new ArrayList<Appointment>()));
+                for (int minute = 0; minute < usage.length; minute++) {
+                    if (usage[minute] == 0 && minute % 60 != 0) {
+                        continue;
+                    }
+                    LocalTime time = DateTimeUtils.fromMinuteOfDay(minute);
+                    int booked = resource.getMaxConcurrentUsage(day, time, time.plusMinutes(1));
+                    check(usage[minute] <= resource.getCapacity() && usage[minute] == booked,
+                          room + " usage at " + day + " " + time);
+                }
+            }
+        }
+    }
+
+    private void checkMove(UserManager manager, BatchRescheduler.Move move) {
+        Appointment from = move.getOriginal();
+        Appointment to = move.getRescheduled();
+        LocalDateTime before = LocalDateTime.of(from.getDate(), from.getStartTime());
+        LocalDateTime after = LocalDateTime.of(to.getDate(), to.getStartTime());
+        check(to.getDate().isAfter(days.get(0)), "after the outage: " + move);
+        check(!after.isAfter(before.plus(maxDelay)), "within the maximum delay: " + move);
+        check(!to.getStartTime().isBefore(OPENING) && !to.getEndTime().isAfter(CLOSING),
+              "within clinic hours: " + move);
+        check(DateTimeUtils.toMinuteOfDay(to.getStartTime()) % GRID_MINUTES == 0,
+              "on the grid: " + move);
+        check(Duration.between(from.getStartTime(), from.getEndTime())
+                .equals(Duration.between(to.getStartTime(), to.getEndTime())),
+              "same duration: " + move);
+        check(from.getPurpose().equals(to.getPurpose())
+                && new TreeSet<>(from.getParticipants()).equals(new TreeSet<>(to.getParticipants()))
+                && from.getResources().equals(to.getResources()), "same details: " + move);
+        for (String party : to.getParticipants()) {
+            User user = manager.getUser(party);
+            check(user.getAppointmentByStart(to.getDate(), to.getStartTime()) == to
+                    && user.getAppointmentByStart(from.getDate(), from.getStartTime()) != from,
+                  "moved in every diary: " + move);
+        }
+    }
+
+    /**
+     * Replays the priority order. Appointments are planned earliest first,
+     * and those with more parties first among equal starts. When one was
+     * planned, only the moves planned before it had been placed. So with
+     * the later moves taken out, no earlier slot may be free for a move,
+     * and no slot at all for a reported appointment. Rooms use the same
+     * rule as the planner: existing peak plus planned peak below capacity.
+     */
+    private void checkGreedyOrder(UserManager manager, BatchRescheduler.Result result) {
+        Map<Appointment, Appointment> placedAs = new IdentityHashMap<>();
+        for (BatchRescheduler.Move move : result.getMoves()) {
+            placedAs.put(move.getOriginal(), move.getRescheduled());
+        }
+        List<Appointment> order = new ArrayList<>(placedAs.keySet());
+        order.addAll(result.getUnplaced());
+        order.sort((a, b) -> {
+            int dateCompare = a.getDate().compareTo(b.getDate());
+            if (dateCompare != 0) return dateCompare;
+            int timeCompare = a.getStartTime().compareTo(b.getStartTime());
+            if (timeCompare != 0) return timeCompare;
+            return Integer.compare(b.getParticipants().size(), a.getParticipants().size());
+        });
+
+        // Everything placed by this batch counts as not yet placed at first
+        Set<Appointment> later = identitySet(new ArrayList<>(placedAs.values()));
+        Set<Appointment> planned = identitySet(new ArrayList<Appointment>());
+        for (Appointment apt : order) {
+            Appointment placed = placedAs.get(apt);
+            if (placed != null) {
+                later.remove(placed);
+            }
+            LocalDateTime earliestFound = firstFreeSlot(manager, apt, later, planned, placed);
+            if (placed == null) {
+                check(earliestFound == null, "reported appointment had a free slot at "
+                      + earliestFound + ": " + apt);
+            } else {
+                check(earliestFound == null, "earlier slot " + earliestFound + " was free for "
+                      + apt + " -> " + placed);
+                planned.add(placed);
+            }
+        }
+    }
+
+    /**
+     * Finds a slot for an appointment before its placement (or anywhere in
+     * its window if it was not placed), ignoring the given appointments.
+     */
+    private LocalDateTime firstFreeSlot(UserManager manager, Appointment apt,
+                                        Set<Appointment> ignored, Set<Appointment> planned,
+                                        Appointment placed) {
+        int duration = DateTimeUtils.toMinuteOfDay(apt.getEndTime())
+            - DateTimeUtils.toMinuteOfDay(apt.getStartTime());
+        LocalDateTime latest = LocalDateTime.of(apt.getDate(), apt.getStartTime()).plus(maxDelay);
+        LocalDateTime limit = placed == null ? latest
+            : LocalDateTime.of(placed.getDate(), placed.getStartTime()).minusMinutes(1);
+        int open = DateTimeUtils.toMinuteOfDay(OPENING);
+        int close = DateTimeUtils.toMinuteOfDay(CLOSING);
+
+        for (LocalDate day : days.subList(1, days.size())) {
+            BitSet busy = new BitSet();
+            for (String party : apt.getParticipants()) {
+                for (Appointment other : manager.getUser(party).getAppointmentsByDate(day)) {
+                    if (!ignored.contains(other)) {
+                        busy.set(DateTimeUtils.toMinuteOfDay(other.getStartTime()),
+                                 DateTimeUtils.toMinuteOfDay(other.getEndTime()));
+                    }
+                }
+            }
+            for (int start = open; start + duration <= close; start += GRID_MINUTES) {
+                LocalDateTime at = LocalDateTime.of(day, DateTimeUtils.fromMinuteOfDay(start));
+                if (at.isAfter(limit)) {
+                    return null;
+                }
+                if (busy.nextSetBit(start) >= 0 && busy.nextSetBit(start) < start + duration) {
+                    continue;
+                }
+                if (roomsFree(manager, apt, day, start, start + duration, ignored, planned)) {
+                    return at;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean roomsFree(UserManager manager, Appointment apt, LocalDate day, int from, int to,
+                              Set<Appointment> ignored, Set<Appointment> planned) {
+        for (String room : apt.getResources()) {
+            // Existing bookings: everything but this batch's placements
+            Set<Appointment> notExisting = identitySet(new ArrayList<>(ignored));
+            notExisting.addAll(planned);
+            int[] existing = roomUsage(manager, room, day, notExisting);
+            int[] plannedUsage = new int[existing.length];
+            for (Appointment other : planned) {
+                if (other.getDate().equals(day) && other.getResources().contains(room)) {
+                    for (int m = DateTimeUtils.toMinuteOfDay(other.getStartTime());
+                             m < DateTimeUtils.toMinuteOfDay(other.getEndTime()); m++) {
+                        plannedUsage[m]++;
+                    }
+                }
+            }
+            int existingPeak = 0;
+            int plannedPeak = 0;
+            for (int m = from; m < to; m++) {
+                existingPeak = Math.max(existingPeak, existing[m]);
+                plannedPeak = Math.max(plannedPeak, plannedUsage[m]);
+            }
+            if (existingPeak + plannedPeak >= manager.getResource(room).getCapacity()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts, per minute of the day, the appointments in any diary that
+     * book the room, leaving out the ignored ones.
+     */
+    private int[] roomUsage(UserManager manager, String room, LocalDate day,
+                            Set<Appointment> ignored) {
+        Set<Appointment> held = identitySet(new ArrayList<Appointment>());
+        for (String username : manager.getAllUsernames()) {
+            for (Appointment apt : manager.getUser(username).getAppointmentsByDate(day)) {
+                if (apt.getResources().contains(room) && !ignored.contains(apt)) {
+                    held.add(apt);
+                }
+            }
+        }
+        int[] usage = new int[OccupancyTree.MINUTES_PER_DAY];
+        for (Appointment apt : held) {
+            for (int m = DateTimeUtils.toMinuteOfDay(apt.getStartTime());
+                     m < DateTimeUtils.toMinuteOfDay(apt.getEndTime()); m++) {
+                usage[m]++;
+            }
+        }
+        return usage;
+    }
+
+    private void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            if (failures <= 10) {
+                System.out.println("Check failed: " + what);
+            }
+        }
+    }
+
+    private static Set<Appointment> identitySet(List<Appointment> initial) {
+        Set<Appointment> set = Collections.newSetFromMap(new IdentityHashMap<Appointment, Boolean>());
+        set.addAll(initial);
+        return set;
+    }
+
+    /**
+     * Main entry point for the benchmark.
+     * @param args Optional appointments, maxDelayDays, rounds, maxMillis
+     */
+    public static void main(String[] args) {
+        int appointments = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int maxDelayDays = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        double maxMillis = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        List<LocalDate> days = DateTimeUtils.getBookableDays(maxDelayDays + 2);
+        if (days.size() < 2) {
+            System.out.println("No bookable dates left before " + DateTimeUtils.getMaxDate());
+            return;
+        }
+
+        BatchReschedulerBenchmark benchmark = new BatchReschedulerBenchmark(
+            appointments, Duration.ofDays(maxDelayDays), days, 42);
+        benchmark.runRound(); // warm-up
+        double[] times = new double[rounds];
+        for (int i = 0; i < rounds; i++) {
+            times[i] = benchmark.runRound();
+        }
+        Arrays.sort(times);
+        double median = times.length == 0 ? 0 : times[times.length / 2];
+        System.out.printf("median reschedule time=%.2f ms%n", median);
+
+        if (benchmark.getFailures() > 0 || (maxMillis > 0 && median > maxMillis)) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+import java.lang.management.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+ * Soak-test harness that replays a full clinic day against the in-process
+ * UserManager/User API for a fixed duration.
+ *
+ * The traffic mix is meant to look like a real front desk:
+ * - users are picked from a Zipf distribution, so a few diaries are hot;
+ * - each simulated day starts with a burst of bookings at opening time;
+ * - cancellations and reschedules keep churning the diaries;
+ * - most requests are "f" lookups (is there an appointment at this time?).
+ *
+ * Every report interval it prints throughput, latency percentiles, GC
+ * pauses and heap usage, then a summary per operation. The exit code is
+ * non-zero if an operation threw, a diary ended up inconsistent, or the
+ * overall p99 exceeded --max-p99-ms, so the same command works in CI:
+ *
+ *   javac -encoding UTF-8 -d out *.java && java -cp out ClinicLoadGenerator --duration 60
+ */
+public class ClinicLoadGenerator {
+    private static final String[] OPERATIONS = { "schedule", "cancel", "reschedule", "find", "purpose" };
+    private static final int SCHEDULE = 0;
+    private static final int CANCEL = 1;
+    private static final int RESCHEDULE = 2;
+    private static final int FIND = 3;
+    private static final int PURPOSE = 4;
+
+    // Operation weights, in the order of OPERATIONS
+    private static final int[] STEADY_MIX = { 15, 8, 7, 60, 10 };
+    private static final int[] OPENING_MIX = { 70, 5, 5, 15, 5 };
+
+    private static final LocalTime OPENING = LocalTime.of(8, 0);
+    private static final int SLOT_MINUTES = 10;
+    private static final int SLOTS_PER_DAY = 60;
+    private static final String[] PURPOSES = {
+        "Checkup", "Blood test", "MRI scan", "Follow-up", "Vaccination", "X-ray", "Consultation"
+    };
+
+    private final int durationSeconds;
+    private final int threads;
+    private final int patients;
+    private final int doctors;
+    private final double zipfExponent;
+    private final int daySeconds;
+    private final double openingFraction;
+    private final int reportSeconds;
+    private final long seed;
+
+    private final UserManager manager;
+    private final List<LocalDate> days;
+    private final double[] patientCdf;
+    private final double[] doctorCdf;
+    private final LatencyHistogram[][] histograms;
+    private final AtomicLong failures;
+    private final LatencyHistogram gcPauses;
+    private final AtomicLong gcMillis;
+    private volatile boolean stopped;
+
+    public ClinicLoadGenerator(Map<String, String> options) {
+        this.durationSeconds = intOption(options, "duration", 60);
+        this.threads = intOption(options, "threads", Runtime.getRuntime().availableProcessors());
+        this.patients = intOption(options, "patients", 20000);
+        this.doctors = intOption(options, "doctors", 50);
+        this.zipfExponent = Double.parseDouble(option(options, "zipf", "1.1"));
+        this.daySeconds = intOption(options, "day-seconds", Math.max(1, durationSeconds));
+        this.openingFraction = Double.parseDouble(option(options, "opening-fraction", "0.15"));
+        this.reportSeconds = intOption(options, "report", 5);
+        this.seed = Long.parseLong(option(options, "seed", "42"));
+
+        this.manager = new UserManager();
+        this.days = DateTimeUtils.getBookableDays(intOption(options, "days", 30));
+        this.patientCdf = zipfCdf(patients, zipfExponent);
+        this.doctorCdf = zipfCdf(doctors, zipfExponent);
+        this.histograms = new LatencyHistogram[threads][OPERATIONS.length];
+        for (int t = 0; t < threads; t++) {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                histograms[t][op] = new LatencyHistogram();
+            }
+        }
+        this.failures = new AtomicLong();
+        this.gcPauses = new LatencyHistogram();
+        this.gcMillis = new AtomicLong();
+    }
+
+    /**
+     * Runs the soak test and prints the reports.
+     * @param maxP99Millis Fail if the overall p99 exceeds this, or 0 to disable
+     * @return true if the run passed
+     */
+    public boolean run(double maxP99Millis) throws InterruptedException {
+        if (days.isEmpty()) {
+            System.out.println("No bookable dates left before " + DateTimeUtils.getMaxDate());
+            return true;
+        }
+        for (int i = 0; i < patients; i++) {
+            manager.addUser(patientName(i));
+        }
+        for (int i = 0; i < doctors; i++) {
+            manager.addUser(doctorName(i));
+        }
+        installGcListener();
+
+        System.out.printf("duration=%ds threads=%d patients=%d doctors=%d zipf=%.2f days=%d%n",
+            durationSeconds, threads, patients, doctors, zipfExponent, days.size());
+        System.out.printf("%8s %8s %12s %10s %10s %10s %10s %8s %10s %10s%n",
+            "time(s)", "phase", "ops/s", "p50(us)", "p99(us)", "p99.9(us)", "max(us)",
+            "gc", "gc(ms)", "heap(MB)");
+
+        long startNanos = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            Thread worker = new Thread(() -> work(index, startNanos), "load-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long[] previous = LatencyHistogram.emptySnapshot();
+        long gcCountPrevious = 0;
+        long gcMillisPrevious = 0;
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long lastReport = startNanos;
+        while (System.nanoTime() < deadline) {
+            long sleep = Math.min(lastReport + TimeUnit.SECONDS.toNanos(reportSeconds), deadline)
+                         - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+            long now = System.nanoTime();
+            long[] current = mergedSnapshot(-1);
+            long gcCount = LatencyHistogram.totalCount(gcPauses.snapshot());
+            long gcTime = gcMillis.get();
+            report((now - startNanos) / 1e9, (now - lastReport) / 1e9,
+                   LatencyHistogram.difference(current, previous),
+                   gcCount - gcCountPrevious, gcTime - gcMillisPrevious);
+            previous = current;
+            gcCountPrevious = gcCount;
+            gcMillisPrevious = gcTime;
+            lastReport = now;
+        }
+        stopped = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+
+        return summarize(elapsed, maxP99Millis);
+    }
+
+    // Worker loop
+
+    private void work(int index, long startNanos) {
+        Random random = new Random(seed + 1000003L * index);
+        LatencyHistogram[] mine = histograms[index];
+        while (!stopped) {
+            double elapsed = (System.nanoTime() - startNanos) / 1e9;
+            int[] mix = isOpening(elapsed) ? OPENING_MIX : STEADY_MIX;
+            int op = pick(mix, random);
+            long began = System.nanoTime();
+            try {
+                execute(op, random);
+            } catch (RuntimeException e) {
+                if (failures.getAndIncrement() == 0) {
+                    e.printStackTrace();
+                }
+            }
+            mine[op].record(System.nanoTime() - began);
+        }
+    }
+
+    private void execute(int op, Random random) {
+        LocalDate date = days.get(random.nextInt(days.size()));
+        LocalTime time = OPENING.plusMinutes((long) random.nextInt(SLOTS_PER_DAY) * SLOT_MINUTES);
+        User patient = manager.getUser(patientName(sample(patientCdf, random)));
+
+        switch (op) {
+            case SCHEDULE: {
+                LocalTime end = time.plusMinutes(SLOT_MINUTES * (1 + random.nextInt(3)));
+                String purpose = PURPOSES[random.nextInt(PURPOSES.length)];
+                if (random.nextInt(10) < 7) {
+                    String doctor = doctorName(sample(doctorCdf, random));
+                    manager.scheduleGroupAppointment(
+                        Arrays.asList(patient.getUsername(), doctor), date, time, end, purpose);
+                } else {
+                    patient.scheduleAppointment(date, time, end, purpose);
+                }
+                break;
+            }
+            case CANCEL: {
+                Appointment apt = anyAppointment(patient, date, random);
+                if (apt != null) {
+                    manager.cancelGroupAppointment(apt.getParticipants(), apt.getDate(),
+                                                   apt.getStartTime());
+                }
+                break;
+            }
+            case RESCHEDULE: {
+                Appointment apt = anyAppointment(patient, date, random);
+                if (apt != null) {
+                    long minutes = Duration.between(apt.getStartTime(), apt.getEndTime()).toMinutes();
+                    manager.rescheduleAppointment(patient.getUsername(), apt.getDate(),
+                        apt.getStartTime(), date, time, time.plusMinutes(minutes));
+                }
+                break;
+            }
+            case FIND:
+                patient.findAppointment(date, time.plusMinutes(random.nextInt(SLOT_MINUTES)));
+                break;
+            case PURPOSE:
+            default: {
+                Appointment apt = patient.getAppointmentByStart(date, time);
+                if (apt != null) {
+                    apt.getPurpose();
+                }
+                break;
+            }
+        }
+    }
+
+    private static Appointment anyAppointment(User user, LocalDate date, Random random) {
+        List<Appointment> onDate = user.getAppointmentsByDate(date);
+        if (onDate.isEmpty()) {
+            return null;
+        }
+        return onDate.get(random.nextInt(onDate.size()));
+    }
+
+    private boolean isOpening(double elapsedSeconds) {
+        return elapsedSeconds % daySeconds < daySeconds * openingFraction;
+    }
+
+    /**
+     * Gets how many of the first elapsedSeconds of the run were opening time.
+     */
+    private double openingSecondsUntil(double elapsedSeconds) {
+        double openingLength = daySeconds * openingFraction;
+        double fullDays = Math.floor(elapsedSeconds / daySeconds);
+        return fullDays * openingLength + Math.min(elapsedSeconds - fullDays * daySeconds, openingLength);
+    }
+
+    // Reporting
+
+    private void report(double elapsed, double seconds, long[] interval,
+                        long gcCount, long gcTime) {
+        long ops = LatencyHistogram.totalCount(interval);
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        // Label the interval by the phase that covered most of it, not by
+        // the phase at the moment of reporting
+        double opening = openingSecondsUntil(elapsed) - openingSecondsUntil(elapsed - seconds);
+        System.out.printf("%8.1f %8s %,12.0f %10.1f %10.1f %10.1f %10.1f %8d %10d %10.1f%n",
+            elapsed, opening * 2 > seconds ? "opening" : "steady", ops / seconds,
+            micros(LatencyHistogram.percentile(interval, 50)),
+            micros(LatencyHistogram.percentile(interval, 99)),
+            micros(LatencyHistogram.percentile(interval, 99.9)),
+            micros(LatencyHistogram.percentile(interval, 100)),
+            gcCount, gcTime, heap.getUsed() / (1024.0 * 1024.0));
+    }
+
+    private boolean summarize(double elapsed, double maxP99Millis) {
+        System.out.println();
+        System.out.printf("%-12s %12s %10s %10s %10s %10s %10s%n",
+            "operation", "count", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)");
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            long[] counts = mergedSnapshot(op);
+            long max = 0;
+            for (int t = 0; t < threads; t++) {
+                max = Math.max(max, histograms[t][op].getMax());
+            }
+            System.out.printf("%-12s %,12d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                OPERATIONS[op], LatencyHistogram.totalCount(counts),
+                micros(LatencyHistogram.percentile(counts, 50)),
+                micros(LatencyHistogram.percentile(counts, 90)),
+                micros(LatencyHistogram.percentile(counts, 99)),
+                micros(LatencyHistogram.percentile(counts, 99.9)),
+                micros(max));
+        }
+
+        long[] all = mergedSnapshot(-1);
+        long total = LatencyHistogram.totalCount(all);
+        double p99Millis = LatencyHistogram.percentile(all, 99) / 1e6;
+        long[] gc = gcPauses.snapshot();
+        long appointments = 0;
+        for (String username : manager.getAllUsernames()) {
+            appointments += manager.getUser(username).getAppointments().size();
+        }
+        System.gc();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        System.out.println();
+        System.out.printf("total ops=%,d throughput=%,.0f ops/s p99=%.3f ms failures=%d%n",
+            total, total / elapsed, p99Millis, failures.get());
+        System.out.printf("gc pauses=%d total=%d ms p50=%d ms p99=%d ms max=%d ms%n",
+            LatencyHistogram.totalCount(gc), gcMillis.get(), LatencyHistogram.percentile(gc, 50),
+            LatencyHistogram.percentile(gc, 99), gcPauses.getMax());
+        System.out.printf("diary entries=%,d live heap after gc=%.1f MB%n",
+            appointments, heap.getUsed() / (1024.0 * 1024.0));
+
+        boolean consistent = checkDiaries();
+        System.out.println("diaries consistent=" + consistent);
+
+        boolean passed = consistent && failures.get() == 0;
+        if (maxP99Millis > 0 && p99Millis > maxP99Millis) {
+            System.out.printf("p99 %.3f ms exceeds limit %.3f ms%n", p99Millis, maxP99Millis);
+            passed = false;
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /**
+     * Merges the snapshots of all threads for one operation, or for all
+     * operations when op is negative.
+     */
+    private long[] mergedSnapshot(int op) {
+        long[] merged = LatencyHistogram.emptySnapshot();
+        for (int t = 0; t < threads; t++) {
+            for (int o = 0; o < OPERATIONS.length; o++) {
+                if (op < 0 || op == o) {
+                    LatencyHistogram.addTo(merged, histograms[t][o].snapshot());
+                }
+            }
+        }
+        return merged;
+    }
+
+    private boolean checkDiaries() {
+        for (String username : manager.getAllUsernames()) {
+            List<Appointment> diary = manager.getUser(username).getAppointments();
+            for (int i = 1; i < diary.size(); i++) {
+                Appointment prev = diary.get(i - 1);
+                Appointment apt = diary.get(i);
+                if (prev.getDate().equals(apt.getDate())
+                        && prev.conflictsWith(apt.getStartTime(), apt.getEndTime())) {
+                    System.out.println("Overlap in diary of " + username + ": " + prev + " / " + apt);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the duration (in milliseconds) of every collection reported
+     * by the JVM.
+     * Only available on JVMs that emit GC notifications (e.g. HotSpot).
+     */
+    private void installGcListener() {
+        NotificationListener listener = (notification, handback) -> {
+            if (!"com.sun.management.gc.notification".equals(notification.getType())) {
+                return;
+            }
+            CompositeData info = (CompositeData) notification.getUserData();
+            CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+            long duration = (Long) gcInfo.get("duration");
+            gcPauses.record(duration);
+            gcMillis.addAndGet(duration);
+        };
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                ((NotificationEmitter) bean).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    // Workload helpers
+
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static int sample(double[] cdf, Random random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return Math.min(index, cdf.length - 1);
+    }
+
+    private static int pick(int[] weights, Random random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int roll = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            roll -= weights[i];
+            if (roll < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private static String patientName(int index) {
+        return "patient" + index;
+    }
+
+    private static String doctorName(int index) {
+        return "doctor" + index;
+    }
+
+    // Command line handling
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : value;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int fallback) {
+        return Integer.parseInt(option(options, name, String.valueOf(fallback)));
+    }
+
+    /**
+     * Main entry point for the load generator.
+     * Options (all optional): --duration s, --threads n, --patients n,
+     * --doctors n, --zipf exponent, --days n, --day-seconds s,
+     * --opening-fraction f, --report s, --seed n, --max-p99-ms ms
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.out.println("Invalid option: " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        ClinicLoadGenerator generator = new ClinicLoadGenerator(options);
+        boolean passed = generator.run(Double.parseDouble(option(options, "max-p99-ms", "0")));
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,88 @@
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Consistent hash ring that maps keys (usernames) to shards.
+ *
+ * Each shard is placed on the ring at many virtual points, and a key
+ * belongs to the first point at or after its own hash. Adding a shard
+ * therefore only moves the keys that now fall just before its points,
+ * roughly 1/N of them, and leaves every other key where it was.
+ */
+public class ConsistentHashRing {
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private final List<String> shards;
+    private final TreeMap<Long, Integer> ring;
+
+    /**
+     * Creates a ring over the given shards.
+     * @param shards Stable shard identifiers, e.g. "host:port"
+     */
+    public ConsistentHashRing(List<String> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a ring with a specific number of virtual points per shard.
+     * @param shards Stable shard identifiers, e.g. "host:port"
+     * @param virtualNodes Points per shard; more points spread keys more evenly
+     */
+    public ConsistentHashRing(List<String> shards, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.ring = new TreeMap<>();
+        for (int i = 0; i < this.shards.size(); i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring.put(hash(this.shards.get(i) + "#" + v), i);
+            }
+        }
+    }
+
+    /**
+     * Gets the index of the shard that owns the key.
+     * @param key The key to look up
+     * @return Index into getShards(), or -1 if the ring is empty
+     */
+    public int shardFor(String key) {
+        if (ring.isEmpty()) {
+            return -1;
+        }
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * Creates a new ring with one more shard, keeping this ring unchanged.
+     * @param shard The identifier of the new shard
+     * @return The larger ring
+     */
+    public ConsistentHashRing withShard(String shard) {
+        List<String> grown = new ArrayList<>(shards);
+        grown.add(shard);
+        return new ConsistentHashRing(grown, virtualNodes);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, followed by a final mix so that
+     * similar keys land far apart on the ring.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -6,11 +6,19 @@ import java.time.*;
  */
 public class ConsoleUI {
     private Scanner scanner;
-    private UserManager userManager;
+    private UserDirectory userManager;
     
     public ConsoleUI() {
+        this(new UserManager());
+    }
+    
+    /**
+     * Creates a console over existing users, e.g. a sharded deployment.
+     * @param userManager The users to manage
+     */
+    public ConsoleUI(UserDirectory userManager) {
         this.scanner = new Scanner(System.in);
-        this.userManager = new UserManager();
+        this.userManager = userManager;
     }
     
     /**
@@ -94,7 +102,7 @@ public class ConsoleUI {
      */
     public void handleScheduleAppointment() {
         String username = getInput("Enter username: ");
-        User user = userManager.getUser(username);
+        Diary user = userManager.getUser(username);
         
         if (user == null) {
             displayMessage("User not found!");
@@ -141,7 +149,7 @@ public class ConsoleUI {
      */
     public void handleCancelAppointment() {
         String username = getInput("Enter username: ");
-        User user = userManager.getUser(username);
+        Diary user = userManager.getUser(username);
         
         if (user == null) {
             displayMessage("User not found!");
@@ -174,7 +182,7 @@ public class ConsoleUI {
      */
     public void handleCheckAppointment() {
         String username = getInput("Enter username: ");
-        User user = userManager.getUser(username);
+        Diary user = userManager.getUser(username);
         
         if (user == null) {
             displayMessage("User not found!");
@@ -212,7 +220,7 @@ public class ConsoleUI {
      */
     public void handleRetrievePurpose() {
         String username = getInput("Enter username: ");
-        User user = userManager.getUser(username);
+        Diary user = userManager.getUser(username);
         
         if (user == null) {
             displayMessage("User not found!");
@@ -246,7 +254,7 @@ public class ConsoleUI {
      */
     public void handleRescheduleAppointment() {
         String username = getInput("Enter username: ");
-        User user = userManager.getUser(username);
+        Diary user = userManager.getUser(username);
         
         if (user == null) {
             displayMessage("User not found!");
@@ -301,7 +309,8 @@ public class ConsoleUI {
             return;
         }
         
-        if (user.rescheduleAppointment(oldDate, oldStartTime, newDate, newStartTime, newEndTime)) {
+        if (userManager.rescheduleAppointment(user.getUsername(), oldDate, oldStartTime,
+                                             newDate, newStartTime, newEndTime)) {
             displayMessage("Appointment rescheduled successfully!");
         } else {
             displayMessage("Cannot reschedule. Time slot may be taken or date is invalid.");
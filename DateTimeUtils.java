@@ -1,5 +1,6 @@
 import java.time.*;
 import java.time.format.*;
+import java.util.*;
 
 /**
  * Utility class for date and time parsing and formatting.
@@ -64,6 +65,24 @@ public class DateTimeUtils {
         return startTime != null && endTime != null && startTime.isBefore(endTime);
     }
     
+    /**
+     * Converts a time to minutes since midnight, dropping any seconds.
+     * @param time The time to convert
+     * @return Minute of the day, 0 to 1439
+     */
+    public static int toMinuteOfDay(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+    
+    /**
+     * Converts minutes since midnight back to a time.
+     * @param minute Minute of the day, 0 to 1439
+     * @return The time at the start of that minute
+     */
+    public static LocalTime fromMinuteOfDay(int minute) {
+        return LocalTime.of(minute / 60, minute % 60);
+    }
+    
     /**
      * Gets the current date.
      * @return Current date
@@ -79,4 +98,20 @@ public class DateTimeUtils {
     public static LocalDate getMaxDate() {
         return LocalDate.of(2026, 12, 31);
     }
+    
+    /**
+     * Gets the days on which appointments can still be booked, starting
+     * tomorrow and ending at the maximum date at the latest.
+     * @param count Maximum number of days to return
+     * @return Consecutive bookable days, empty if none are left
+     */
+    public static List<LocalDate> getBookableDays(int count) {
+        List<LocalDate> days = new ArrayList<>();
+        LocalDate day = getCurrentDate().plusDays(1);
+        while (!day.isAfter(getMaxDate()) && days.size() < count) {
+            days.add(day);
+            day = day.plusDays(1);
+        }
+        return days;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * One user's appointment diary. User keeps the diary in this process;
+ * ShardedUserManager hands out diaries that live in a shard process.
+ */
+public interface Diary {
+    String getUsername();
+
+    /**
+     * Schedules a new appointment for this user.
+     * @param date The date of the appointment
+     * @param startTime The start time
+     * @param endTime The end time
+     * @param purpose The purpose of the appointment
+     * @return true if successfully scheduled, false otherwise
+     */
+    boolean scheduleAppointment(LocalDate date, LocalTime startTime, LocalTime endTime,
+                                String purpose);
+
+    /**
+     * Cancels an appointment at the specified date and time.
+     * @param date The date of the appointment
+     * @param startTime The start time of the appointment
+     * @return true if cancelled successfully, false if not found
+     */
+    boolean cancelAppointment(LocalDate date, LocalTime startTime);
+
+    /**
+     * Finds an appointment at the given date and time.
+     * @param date The date to check
+     * @param time The time to check
+     * @return The appointment if found, null otherwise
+     */
+    Appointment findAppointment(LocalDate date, LocalTime time);
+
+    /**
+     * Gets an appointment by its exact start date and time.
+     * @param date The date of the appointment
+     * @param startTime The exact start time
+     * @return The appointment if found, null otherwise
+     */
+    Appointment getAppointmentByStart(LocalDate date, LocalTime startTime);
+
+    /**
+     * Reschedules an appointment held by this user alone. Appointments
+     * shared with other diaries or holding resources are left alone.
+     * @param oldDate Current date of the appointment
+     * @param oldStartTime Current start time
+     * @param newDate New date
+     * @param newStartTime New start time
+     * @param newEndTime New end time
+     * @return true if rescheduled successfully, false otherwise
+     */
+    boolean rescheduleAppointment(LocalDate oldDate, LocalTime oldStartTime, LocalDate newDate,
+                                  LocalTime newStartTime, LocalTime newEndTime);
+
+    /**
+     * Gets all appointments for this user.
+     * @return List of appointments in date and time order (copy)
+     */
+    List<Appointment> getAppointments();
+
+    /**
+     * Gets appointments for a specific date.
+     * @param date The date to filter by
+     * @return List of appointments on that date
+     */
+    List<Appointment> getAppointmentsByDate(LocalDate date);
+
+    /**
+     * Visits every appointment in date and time order.
+     * @param action The action to run for each appointment
+     */
+    void forEachAppointment(Consumer<Appointment> action);
+}
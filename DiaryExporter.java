@@ -0,0 +1,426 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Streams every user's appointments to CSV or iCalendar (.ics) files.
+ *
+ * Nothing is collected up front: users are visited in place, and each
+ * diary's matching appointments are copied into a reusable list while its
+ * lock is held. The lock is then released before each field is encoded
+ * into one reusable direct ByteBuffer, which is written through a
+ * FileChannel whenever it fills up, so bookings never wait on disk I/O.
+ * Memory use therefore depends on the buffer size and the largest diary,
+ * not on the number of users or appointments. Dates and times are written
+ * digit by digit and text is UTF-8 encoded by hand.
+ *
+ * An exporter reuses its buffer and is not thread-safe; use one per thread.
+ */
+public class DiaryExporter {
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    // RFC 5545 limits content lines to 75 octets, excluding the line break
+    private static final int ICS_LINE_LIMIT = 75;
+
+    private final UserManager userManager;
+    private final ByteBuffer buffer;
+    private final List<Appointment> diary;
+    private FileChannel channel;
+    private boolean folding;
+    private int lineOctets;
+    private long written;
+
+    public DiaryExporter(UserManager userManager) {
+        this(userManager, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates an exporter with a specific buffer size.
+     * @param userManager The users to export
+     * @param bufferSize Size of the reusable output buffer in bytes
+     */
+    public DiaryExporter(UserManager userManager, int bufferSize) {
+        this.userManager = userManager;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 64));
+        this.diary = new ArrayList<>();
+    }
+
+    /**
+     * Writes all appointments of all users as CSV.
+     * @param file The file to create or overwrite
+     * @return Number of appointments written
+     * @throws IOException if the file cannot be written
+     */
+    public long exportCsv(Path file) throws IOException {
+        return exportCsv(file, LocalDate.MIN, LocalDate.MAX);
+    }
+
+    /**
+     * Writes the appointments dated within [from, to] as CSV, one row per
+     * diary entry, with the columns username, date, start, end and purpose.
+     * Times use the 24-hour HH:mm format.
+     * @param file The file to create or overwrite
+     * @param from First date to include
+     * @param to Last date to include
+     * @return Number of appointments written
+     * @throws IOException if the file cannot be written
+     */
+    public long exportCsv(Path file, LocalDate from, LocalDate to) throws IOException {
+        open(file, false);
+        try {
+            putAscii("username,date,start,end,purpose\r\n");
+            userManager.forEachUser(user -> {
+                copyDiary(user, from, to);
+                for (Appointment apt : diary) {
+                    putCsvRow(user.getUsername(), apt);
+                }
+            });
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            diary.clear();
+            close();
+        }
+        return written;
+    }
+
+    private void putCsvRow(String username, Appointment apt) {
+        putCsvField(username);
+        put((byte) ',');
+        putDate(apt.getDate(), true);
+        put((byte) ',');
+        putTime(apt.getStartTime(), true);
+        put((byte) ',');
+        putTime(apt.getEndTime(), true);
+        put((byte) ',');
+        putCsvField(apt.getPurpose());
+        putAscii("\r\n");
+        written++;
+    }
+
+    /**
+     * Writes all appointments of all users as an iCalendar file.
+     * @param file The file to create or overwrite
+     * @return Number of appointments written
+     * @throws IOException if the file cannot be written
+     */
+    public long exportICalendar(Path file) throws IOException {
+        return exportICalendar(file, LocalDate.MIN, LocalDate.MAX);
+    }
+
+    /**
+     * Writes the appointments dated within [from, to] as an iCalendar file
+     * with one VEVENT per diary entry. Times are floating local times, as
+     * the system itself does not store time zones.
+     * 
+     * The UID is derived from the appointment, not the diary, so a group
+     * appointment appears once per participant's diary with the same UID
+     * and calendar importers merge the copies into one event.
+     * @param file The file to create or overwrite
+     * @param from First date to include
+     * @param to Last date to include
+     * @return Number of appointments written
+     * @throws IOException if the file cannot be written
+     */
+    public long exportICalendar(Path file, LocalDate from, LocalDate to) throws IOException {
+        LocalDateTime stamp = LocalDateTime.now(ZoneOffset.UTC);
+        open(file, true);
+        try {
+            putAscii("BEGIN:VCALENDAR\r\n");
+            putAscii("VERSION:2.0\r\n");
+            putAscii("PRODID:-//Appointment Management System//Diary Export//EN\r\n");
+            putAscii("CALSCALE:GREGORIAN\r\n");
+            userManager.forEachUser(user -> {
+                copyDiary(user, from, to);
+                for (Appointment apt : diary) {
+                    putEvent(user.getUsername(), apt, stamp);
+                }
+            });
+            putAscii("END:VCALENDAR\r\n");
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            diary.clear();
+            close();
+        }
+        return written;
+    }
+
+    private void putEvent(String username, Appointment apt, LocalDateTime stamp) {
+        putAscii("BEGIN:VEVENT\r\n");
+
+        // Shared by every diary holding the appointment: its slot
+        // plus the users it was booked for
+        putAscii("UID:");
+        putDate(apt.getDate(), false);
+        put((byte) 'T');
+        putTime(apt.getStartTime(), false);
+        List<String> participants = apt.getParticipants();
+        if (participants.isEmpty()) {
+            put((byte) '-');
+            putIcsText(username);
+        }
+        for (String participant : participants) {
+            put((byte) '-');
+            putIcsText(participant);
+        }
+        putAscii("@appointment-management-system\r\n");
+
+        putAscii("DTSTAMP:");
+        putDate(stamp.toLocalDate(), false);
+        put((byte) 'T');
+        putTime(stamp.toLocalTime(), false);
+        putAscii("00Z\r\n");
+
+        putAscii("DTSTART:");
+        putDate(apt.getDate(), false);
+        put((byte) 'T');
+        putTime(apt.getStartTime(), false);
+        putAscii("00\r\n");
+
+        putAscii("DTEND:");
+        putDate(apt.getDate(), false);
+        put((byte) 'T');
+        putTime(apt.getEndTime(), false);
+        putAscii("00\r\n");
+
+        putAscii("SUMMARY:");
+        putIcsText(apt.getPurpose());
+        putAscii("\r\n");
+
+        putAscii("DESCRIPTION:Diary: ");
+        putIcsText(username);
+        putAscii("\r\n");
+
+        if (!apt.getResources().isEmpty()) {
+            putAscii("LOCATION:");
+            for (int i = 0; i < apt.getResources().size(); i++) {
+                if (i > 0) {
+                    putAscii("\\, ");
+                }
+                putIcsText(apt.getResources().get(i));
+            }
+            putAscii("\r\n");
+        }
+
+        putAscii("END:VEVENT\r\n");
+        written++;
+    }
+
+    /**
+     * Copies references to a user's appointments within [from, to] into the
+     * reusable diary list. Only this runs under the diary lock.
+     */
+    private void copyDiary(User user, LocalDate from, LocalDate to) {
+        diary.clear();
+        user.forEachAppointment(apt -> {
+            if (!apt.getDate().isBefore(from) && !apt.getDate().isAfter(to)) {
+                diary.add(apt);
+            }
+        });
+    }
+
+    // Output handling
+
+    private void open(Path file, boolean icsFolding) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.clear();
+        folding = icsFolding;
+        lineOctets = 0;
+        written = 0;
+    }
+
+    private void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    // Encoding helpers
+
+    /**
+     * Writes one octet. When folding is on, a full line is continued on the
+     * next one before any octet other than a line break or a UTF-8
+     * continuation byte, so property names, values and separators all
+     * respect the limit.
+     */
+    private void put(byte b) {
+        if (folding && lineOctets >= ICS_LINE_LIMIT && b != '\r' && b != '\n' && (b & 0xC0) != 0x80) {
+            lineOctets = 0;
+            put((byte) '\r');
+            put((byte) '\n');
+            put((byte) ' ');
+        }
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+        if (b == '\n') {
+            lineOctets = 0;
+        } else {
+            lineOctets++;
+        }
+    }
+
+    private void putAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes one character of content as UTF-8. When folding is on, a
+     * line that would exceed the iCalendar limit is continued on the next
+     * line, never in the middle of a multi-byte sequence.
+     */
+    private void putChar(String s, int index) {
+        char c = s.charAt(index);
+        int octets;
+        if (c < 0x80) {
+            octets = 1;
+        } else if (c < 0x800) {
+            octets = 2;
+        } else if (Character.isHighSurrogate(c) && index + 1 < s.length()
+                   && Character.isLowSurrogate(s.charAt(index + 1))) {
+            octets = 4;
+        } else if (Character.isSurrogate(c)) {
+            c = '?';
+            octets = 1;
+        } else {
+            octets = 3;
+        }
+
+        foldIfNeeded(octets);
+        if (octets == 1) {
+            put((byte) c);
+        } else if (octets == 2) {
+            put((byte) (0xC0 | (c >> 6)));
+            put((byte) (0x80 | (c & 0x3F)));
+        } else if (octets == 3) {
+            put((byte) (0xE0 | (c >> 12)));
+            put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            put((byte) (0x80 | (c & 0x3F)));
+        } else {
+            int cp = Character.toCodePoint(c, s.charAt(index + 1));
+            put((byte) (0xF0 | (cp >> 18)));
+            put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            put((byte) (0x80 | (cp & 0x3F)));
+        }
+    }
+
+    private void foldIfNeeded(int octets) {
+        if (folding && lineOctets + octets > ICS_LINE_LIMIT) {
+            putAscii("\r\n ");
+        }
+    }
+
+    private void putCsvField(String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+
+        if (quote) {
+            put((byte) '"');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                put((byte) '"');
+            }
+            putChar(value, i);
+            if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+            }
+        }
+        if (quote) {
+            put((byte) '"');
+        }
+    }
+
+    private void putIcsText(String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == ';' || c == ',') {
+                foldIfNeeded(2);
+                put((byte) '\\');
+                put((byte) c);
+            } else if (c == '\n') {
+                foldIfNeeded(2);
+                put((byte) '\\');
+                put((byte) 'n');
+            } else if (c == '\r') {
+                continue;
+            } else {
+                putChar(value, i);
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a date as yyyy-MM-dd, or yyyyMMdd when separators are off.
+     */
+    private void putDate(LocalDate date, boolean separators) {
+        putDigits(date.getYear(), 4);
+        if (separators) {
+            put((byte) '-');
+        }
+        putDigits(date.getMonthValue(), 2);
+        if (separators) {
+            put((byte) '-');
+        }
+        putDigits(date.getDayOfMonth(), 2);
+    }
+
+    /**
+     * Writes a time as HH:mm, or HHmm when separators are off.
+     */
+    private void putTime(LocalTime time, boolean separators) {
+        putDigits(time.getHour(), 2);
+        if (separators) {
+            put((byte) ':');
+        }
+        putDigits(time.getMinute(), 2);
+    }
+
+    private void putDigits(int value, int width) {
+        int divisor = 1;
+        for (int i = 1; i < width; i++) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Multi-threaded benchmark for UserManager.scheduleGroupAppointment.
+ * Each operation books a patient, a doctor and a nurse together in one of
+ * the exam rooms, or cancels or moves an earlier booking, so threads
+ * contend on the shared staff diaries and rooms. Bookings are cancelled
+ * either as a group or by each participant on their own.
+ * The benchmark is repeated for 1, 2, 4, ... threads and checks afterwards
+ * that no diary holds overlapping or half-booked appointments and that
+ * every room booking belongs to an appointment still in some diary.
+ *
+ * Usage: java GroupBookingBenchmark [maxThreads] [secondsPerRun] [patients] [doctors] [nurses]
+ */
+public class GroupBookingBenchmark {
+    private static final int SLOT_MINUTES = 20;
+    private static final LocalTime OPENING = LocalTime.of(8, 0);
+    private static final int SLOTS_PER_DAY = 30;
+    private static final int ROOMS = 10;
+
+    /**
+     * A group booking made by a worker, kept so it can be cancelled later.
+     */
+    private static class Booking {
+        private final List<String> group;
+        private final LocalDate date;
+        private final LocalTime startTime;
+
+        Booking(List<String> group, LocalDate date, LocalTime startTime) {
+            this.group = group;
+            this.date = date;
+            this.startTime = startTime;
+        }
+    }
+
+    private final int patients;
+    private final int doctors;
+    private final int nurses;
+    private final List<LocalDate> days;
+
+    public GroupBookingBenchmark(int patients, int doctors, int nurses, List<LocalDate> days) {
+        this.patients = patients;
+        this.doctors = doctors;
+        this.nurses = nurses;
+        this.days = days;
+    }
+
+    /**
+     * Runs one timed round with a fresh UserManager.
+     * @param threads Number of booking threads
+     * @param seconds Duration of the round
+     * @return true if the diaries were consistent afterwards
+     */
+    public boolean runRound(int threads, int seconds) throws InterruptedException {
+        UserManager manager = createManager();
+        AtomicLong booked = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong cancelled = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = 31L * t + 7;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(seed);
+                List<Booking> mine = new ArrayList<>();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (!stop.get()) {
+                    LocalDate date = days.get(random.nextInt(days.size()));
+                    LocalTime startTime = OPENING.plusMinutes(
+                        (long) random.nextInt(SLOTS_PER_DAY) * SLOT_MINUTES);
+                    LocalTime endTime = startTime.plusMinutes(SLOT_MINUTES);
+
+                    if (!mine.isEmpty() && random.nextInt(4) == 0) {
+                        Booking booking = mine.remove(random.nextInt(mine.size()));
+                        int choice = random.nextInt(3);
+                        if (choice == 0) {
+                            if (manager.cancelGroupAppointment(booking.group, booking.date,
+                                                               booking.startTime)) {
+                                cancelled.incrementAndGet();
+                            }
+                        } else if (choice == 1) {
+                            // Each participant cancels on their own; the room
+                            // is freed when the last of them does
+                            for (String username : booking.group) {
+                                manager.getUser(username).cancelAppointment(booking.date,
+                                                                            booking.startTime);
+                            }
+                            cancelled.incrementAndGet();
+                        } else if (manager.rescheduleAppointment(booking.group.get(0), booking.date,
+                                                                 booking.startTime, date, startTime,
+                                                                 endTime)) {
+                            mine.add(new Booking(booking.group, date, startTime));
+                        } else {
+                            mine.add(booking);
+                        }
+                        continue;
+                    }
+
+                    List<String> group = Arrays.asList(
+                        "patient" + random.nextInt(patients),
+                        "doctor" + random.nextInt(doctors),
+                        "nurse" + random.nextInt(nurses));
+                    List<String> room = Collections.singletonList("room" + random.nextInt(ROOMS));
+                    if (manager.scheduleGroupAppointment(group, room, date, startTime, endTime,
+                                                         "Checkup")) {
+                        booked.incrementAndGet();
+                        mine.add(new Booking(group, date, startTime));
+                    } else {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }, "booker-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - began) / 1e9;
+
+        long ops = booked.get() + rejected.get() + cancelled.get();
+        boolean consistent = verify(manager);
+        System.out.printf("threads=%-3d ops/s=%,12.0f booked=%,d rejected=%,d cancelled=%,d consistent=%s%n",
+            threads, ops / elapsed, booked.get(), rejected.get(), cancelled.get(), consistent);
+        return consistent;
+    }
+
+    private UserManager createManager() {
+        UserManager manager = new UserManager();
+        for (int i = 0; i < patients; i++) {
+            manager.addUser("patient" + i);
+        }
+        for (int i = 0; i < doctors; i++) {
+            manager.addUser("doctor" + i);
+        }
+        for (int i = 0; i < nurses; i++) {
+            manager.addUser("nurse" + i);
+        }
+        for (int i = 0; i < ROOMS; i++) {
+            manager.addResource("room" + i, 1);
+        }
+        return manager;
+    }
+
+    /**
+     * Checks that no diary has overlaps, that every group appointment
+     * is present in all of its participants' diaries, and that every room
+     * is booked exactly by the appointments still held in some diary.
+     */
+    private boolean verify(UserManager manager) {
+        Set<Appointment> held = Collections.newSetFromMap(new IdentityHashMap<Appointment, Boolean>());
+        for (String username : manager.getAllUsernames()) {
+            List<Appointment> diary = manager.getUser(username).getAppointments();
+            for (int i = 0; i < diary.size(); i++) {
+                Appointment apt = diary.get(i);
+                if (i > 0) {
+                    Appointment prev = diary.get(i - 1);
+                    if (prev.getDate().equals(apt.getDate())
+                            && prev.conflictsWith(apt.getStartTime(), apt.getEndTime())) {
+                        return false;
+                    }
+                }
+                held.add(apt);
+                for (String other : apt.getParticipants()) {
+                    if (manager.getUser(other).getAppointmentByStart(apt.getDate(),
+                                                                     apt.getStartTime()) != apt) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return roomsMatch(manager, held);
+    }
+
+    private boolean roomsMatch(UserManager manager, Set<Appointment> held) {
+        Map<String, Integer> expected = new HashMap<>();
+        for (Appointment apt : held) {
+            for (String room : apt.getResources()) {
+                expected.merge(room + " " + apt.getDate() + " " + apt.getStartTime(), 1, Integer::sum);
+            }
+        }
+        for (String room : manager.getAllResourceNames()) {
+            Resource resource = manager.getResource(room);
+            for (LocalDate date : days) {
+                for (int slot = 0; slot < SLOTS_PER_DAY; slot++) {
+                    LocalTime startTime = OPENING.plusMinutes((long) slot * SLOT_MINUTES);
+                    int usage = resource.getMaxConcurrentUsage(date, startTime,
+                                                               startTime.plusMinutes(SLOT_MINUTES));
+                    Integer wanted = expected.get(room + " " + date + " " + startTime);
+                    if (usage != (wanted == null ? 0 : wanted)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Main entry point for the benchmark.
+     * @param args Optional maxThreads, secondsPerRun, patients, doctors, nurses
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                                         : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int patients = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int doctors = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int nurses = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        List<LocalDate> days = DateTimeUtils.getBookableDays(30);
+        if (days.isEmpty()) {
+            System.out.println("No bookable dates left before " + DateTimeUtils.getMaxDate());
+            return;
+        }
+
+        GroupBookingBenchmark benchmark = new GroupBookingBenchmark(patients, doctors, nurses, days);
+        benchmark.runRound(1, 1); // warm-up
+        boolean ok = true;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ok &= benchmark.runRound(threads, seconds);
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Log-linear latency histogram with roughly 3% relative precision.
+ * Values are bucketed by their highest set bit and split into 32 linear
+ * sub-buckets, so recording is a couple of bit operations and one atomic
+ * increment, and memory stays fixed however many values are recorded.
+ * Snapshots can be taken while other threads keep recording.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records one value.
+     * @param value The value, usually a latency in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Copies the current bucket counts.
+     * @return Bucket counts
+     */
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the largest value recorded so far.
+     * @return The maximum value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Adds one snapshot into another.
+     * @param target Counts to add to
+     * @param source Counts to add
+     */
+    public static void addTo(long[] target, long[] source) {
+        for (int i = 0; i < BUCKETS; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    /**
+     * Subtracts an earlier snapshot to get the counts of an interval.
+     * @param later The later snapshot
+     * @param earlier The earlier snapshot
+     * @return Counts recorded between the two snapshots
+     */
+    public static long[] difference(long[] later, long[] earlier) {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = later[i] - earlier[i];
+        }
+        return result;
+    }
+
+    /**
+     * Gets an empty set of counts.
+     * @return Zeroed counts
+     */
+    public static long[] emptySnapshot() {
+        return new long[BUCKETS];
+    }
+
+    /**
+     * Gets the total number of values in a snapshot.
+     * @param snapshot Bucket counts
+     * @return Number of values
+     */
+    public static long totalCount(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Gets the value at the given percentile of a snapshot.
+     * @param snapshot Bucket counts
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound of the bucket holding that percentile, 0 if empty
+     */
+    public static long percentile(long[] snapshot, double percentile) {
+        long total = totalCount(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    // Private helper methods
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long lower = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Segment tree over the minutes of one day that tracks how many bookings
+ * cover each minute. Adding a booking and asking for the maximum
+ * concurrent usage over an interval are both O(log n) in the number of
+ * minutes, independent of how many bookings the day holds.
+ */
+public class OccupancyTree {
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final int size;
+    // max[node] is the peak usage inside the node's range, including add[node]
+    private final int[] max;
+    // add[node] is the usage applied to the whole range of the node
+    private final int[] add;
+
+    /**
+     * Creates an empty tree covering one full day.
+     */
+    public OccupancyTree() {
+        this(MINUTES_PER_DAY);
+    }
+
+    /**
+     * Creates an empty tree covering the given number of minutes.
+     * @param size Number of minute slots
+     */
+    public OccupancyTree(int size) {
+        this.size = size;
+        this.max = new int[4 * size];
+        this.add = new int[4 * size];
+    }
+
+    /**
+     * Adds the given usage to every minute in [from, to).
+     * @param from First minute (inclusive)
+     * @param to Last minute (exclusive)
+     * @param delta Usage to add, negative to release
+     */
+    public void add(int from, int to, int delta) {
+        if (from < to) {
+            update(1, 0, size, from, to, delta);
+        }
+    }
+
+    /**
+     * Gets the maximum concurrent usage in [from, to).
+     * @param from First minute (inclusive)
+     * @param to Last minute (exclusive)
+     * @return Peak usage over the interval, 0 for an empty interval
+     */
+    public int maxUsage(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        return query(1, 0, size, from, to);
+    }
+
+    /**
+     * Gets the peak usage over the whole day.
+     * @return Peak usage
+     */
+    public int maxUsage() {
+        return max[1];
+    }
+
+    private void update(int node, int lo, int hi, int from, int to, int delta) {
+        if (from <= lo && hi <= to) {
+            add[node] += delta;
+            max[node] += delta;
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (from < mid) {
+            update(2 * node, lo, mid, from, to, delta);
+        }
+        if (to > mid) {
+            update(2 * node + 1, mid, hi, from, to, delta);
+        }
+        max[node] = add[node] + Math.max(max[2 * node], max[2 * node + 1]);
+    }
+
+    private int query(int node, int lo, int hi, int from, int to) {
+        if (from <= lo && hi <= to) {
+            return max[node];
+        }
+        int mid = (lo + hi) >>> 1;
+        int best = Integer.MIN_VALUE;
+        if (from < mid) {
+            best = Math.max(best, query(2 * node, lo, mid, from, to));
+        }
+        if (to > mid) {
+            best = Math.max(best, query(2 * node + 1, mid, hi, from, to));
+        }
+        return add[node] + best;
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.*;
+
+/**
+ * Append-only sorted list of integer ids, stored as variable-length
+ * encoded gaps. Ids that are close together cost one byte each, so a
+ * term's postings typically take a fraction of an int[] of the same
+ * length. Ids must be appended in strictly increasing order.
+ */
+public class PostingList {
+    private byte[] data;
+    private int length;
+    private int count;
+    private int lastId;
+
+    public PostingList() {
+        this.data = new byte[8];
+        this.lastId = -1;
+    }
+
+    /**
+     * Appends an id larger than every id already in the list.
+     * @param id The id to append
+     */
+    public void add(int id) {
+        if (id <= lastId) {
+            throw new IllegalArgumentException("Ids must be increasing: " + id + " after " + lastId);
+        }
+        int gap = id - lastId;
+        if (length + 5 > data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        while ((gap & ~0x7F) != 0) {
+            data[length++] = (byte) ((gap & 0x7F) | 0x80);
+            gap >>>= 7;
+        }
+        data[length++] = (byte) gap;
+        lastId = id;
+        count++;
+    }
+
+    /**
+     * Gets the number of ids in the list.
+     * @return Number of ids
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets the number of bytes used by the encoded ids.
+     * @return Encoded size in bytes
+     */
+    public int encodedSize() {
+        return length;
+    }
+
+    /**
+     * Gets a cursor positioned before the first id.
+     * @return A new cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Forward-only cursor that decodes ids in increasing order.
+     */
+    public class Cursor {
+        private int offset;
+        private int current = -1;
+        private boolean exhausted;
+
+        /**
+         * Advances to the next id.
+         * @return The next id, or -1 at the end of the list
+         */
+        public int next() {
+            if (offset >= length) {
+                exhausted = true;
+                return -1;
+            }
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += gap;
+            return current;
+        }
+
+        /**
+         * Advances to the first id greater than or equal to the target.
+         * @param target The id to look for
+         * @return That id, or -1 if the list has none
+         */
+        public int advanceTo(int target) {
+            if (exhausted) {
+                return -1;
+            }
+            int id = current;
+            while (id < target) {
+                id = next();
+                if (id < 0) {
+                    return -1;
+                }
+            }
+            return id;
+        }
+    }
+}
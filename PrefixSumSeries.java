@@ -0,0 +1,103 @@
+import java.util.*;
+
+/**
+ * Series of counters over a contiguous integer range (e.g. days since the
+ * epoch) that answers range sums from prefix sums.
+ *
+ * Updating a counter is O(1): it only marks the prefix sums from that
+ * point on as stale. A range query first brings the stale part of the
+ * prefix sums up to date, which costs at most one pass over the buckets
+ * changed since the last query, and then answers in O(1). The range grows
+ * in either direction as needed.
+ *
+ * Not thread-safe; callers synchronize externally.
+ */
+public class PrefixSumSeries {
+    private int base;
+    private long[] values;
+    // prefix[i] is the sum of values[0 .. i-1]; valid up to prefix[validUpTo]
+    private long[] prefix;
+    private int validUpTo;
+    private boolean empty;
+
+    public PrefixSumSeries() {
+        this.values = new long[16];
+        this.prefix = new long[17];
+        this.empty = true;
+    }
+
+    /**
+     * Adds to the counter at the given index.
+     * @param index The bucket index
+     * @param delta Amount to add, negative to subtract
+     */
+    public void add(int index, long delta) {
+        ensureRange(index);
+        int offset = index - base;
+        values[offset] += delta;
+        validUpTo = Math.min(validUpTo, offset);
+    }
+
+    /**
+     * Gets the counter at the given index.
+     * @param index The bucket index
+     * @return The counter value, 0 if never updated
+     */
+    public long get(int index) {
+        if (empty || index < base || index >= base + values.length) {
+            return 0;
+        }
+        return values[index - base];
+    }
+
+    /**
+     * Gets the sum of the counters in [from, to].
+     * @param from First bucket index (inclusive)
+     * @param to Last bucket index (inclusive)
+     * @return The sum, 0 for an empty range
+     */
+    public long sum(int from, int to) {
+        if (empty) {
+            return 0;
+        }
+        int lo = Math.max(from, base) - base;
+        int hi = (int) Math.min((long) to, (long) base + values.length - 1) - base;
+        if (lo > hi) {
+            return 0;
+        }
+        refreshPrefix(hi + 1);
+        return prefix[hi + 1] - prefix[lo];
+    }
+
+    // Private helper methods
+
+    private void refreshPrefix(int upTo) {
+        for (int i = validUpTo; i < upTo; i++) {
+            prefix[i + 1] = prefix[i] + values[i];
+        }
+        validUpTo = Math.max(validUpTo, upTo);
+    }
+
+    private void ensureRange(int index) {
+        if (empty) {
+            base = index;
+            empty = false;
+            return;
+        }
+        if (index >= base && index < base + values.length) {
+            return;
+        }
+
+        int low = Math.min(base, index);
+        int high = Math.max(base + values.length - 1, index);
+        int length = Math.max(values.length * 2, high - low + 1);
+        // Leave slack on the side that had to grow
+        int newBase = index < base ? high - length + 1 : low;
+        long[] grown = new long[length];
+        System.arraycopy(values, 0, grown, base - newBase, values.length);
+        values = grown;
+        prefix = new long[length + 1];
+        base = newBase;
+        validUpTo = 0;
+    }
+}
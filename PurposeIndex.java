@@ -0,0 +1,502 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Inverted index over appointment purposes for full-text lookups such as
+ * "all appointments mentioning MRI next week".
+ *
+ * The index is split into one segment per week of appointment dates, each
+ * with its own lock, so bookings in different weeks never contend and a
+ * date-range query only visits the weeks it covers. Within a segment every
+ * diary entry gets an increasing entry id, and each lower-cased word of
+ * its purpose maps to a PostingList of those ids. Because ids only grow,
+ * postings stay sorted by construction and are stored as compressed gaps.
+ *
+ * Removals just clear the entry's live bit. Once more than half of a
+ * segment's entries are dead it is renumbered and its postings rebuilt,
+ * but not by the booking thread that noticed: that thread holds a diary
+ * lock, so the rebuild is left to the next query on that week, or to
+ * compact(). Only if dead entries pile up far beyond that, because the
+ * week is never queried, does an update compact inline, and then only
+ * that one week.
+ *
+ * The index listens to a UserManager and is updated on every schedule,
+ * cancel and reschedule. Queries run under segment read locks and never
+ * touch the users' diaries; a query spanning several weeks sees each
+ * week as of the moment it visits it.
+ */
+public class PurposeIndex implements AppointmentListener {
+    private static final int MIN_COMPACT_SIZE = 1024;
+    // Dead-to-live ratio at which an update compacts inline after all
+    private static final int FORCED_COMPACT_RATIO = 8;
+    private static final int DAYS_PER_BUCKET = 7;
+
+    // week bucket -> entries dated in that week
+    private final ConcurrentSkipListMap<Integer, Segment> segments;
+
+    /**
+     * A diary entry matching a query.
+     */
+    public static class Hit {
+        private final String username;
+        private final Appointment appointment;
+
+        public Hit(String username, Appointment appointment) {
+            this.username = username;
+            this.appointment = appointment;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public Appointment getAppointment() {
+            return appointment;
+        }
+
+        @Override
+        public String toString() {
+            return username + ": " + appointment;
+        }
+    }
+
+    /**
+     * Creates an empty index that is not attached to any UserManager.
+     */
+    public PurposeIndex() {
+        this.segments = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Creates an index over all current appointments of the given users
+     * and keeps it up to date with later changes.
+     * @param userManager The users to index
+     */
+    public PurposeIndex(UserManager userManager) {
+        this();
+        userManager.addAppointmentListener(this);
+        userManager.forEachUser(user -> user.forEachAppointment(
+            apt -> appointmentAdded(user.getUsername(), apt)));
+    }
+
+    @Override
+    public void appointmentAdded(String username, Appointment apt) {
+        int epochDay = (int) apt.getDate().toEpochDay();
+        Segment segment = segments.computeIfAbsent(bucketOf(epochDay), bucket -> new Segment());
+        segment.lock.writeLock().lock();
+        try {
+            segment.add(username, apt, epochDay);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void appointmentRemoved(String username, Appointment apt) {
+        Segment segment = segments.get(bucketOf((int) apt.getDate().toEpochDay()));
+        if (segment == null) {
+            return;
+        }
+        segment.lock.writeLock().lock();
+        try {
+            segment.remove(username, apt);
+            int dead = segment.nextId - segment.liveCount;
+            if (dead >= MIN_COMPACT_SIZE && dead > FORCED_COMPACT_RATIO * segment.liveCount) {
+                segment.compact();
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds entries whose purpose contains every word of the query.
+     * @param query One or more words, matched case-insensitively
+     * @return Matching entries ordered by date, start time and username
+     */
+    public List<Hit> search(String query) {
+        return search(query, null, null);
+    }
+
+    /**
+     * Finds entries dated within [from, to] whose purpose contains every
+     * word of the query.
+     * @param query One or more words, matched case-insensitively
+     * @param from First date to include, or null for no lower bound
+     * @param to Last date to include, or null for no upper bound
+     * @return Matching entries ordered by date, start time and username
+     */
+    public List<Hit> search(String query, LocalDate from, LocalDate to) {
+        List<String> terms = tokenize(query);
+        List<Hit> hits = new ArrayList<>();
+        if (terms.isEmpty()) {
+            return hits;
+        }
+
+        int minDay = from == null ? Integer.MIN_VALUE : (int) from.toEpochDay();
+        int maxDay = to == null ? Integer.MAX_VALUE : (int) to.toEpochDay();
+        for (Segment segment : segmentRange(minDay, maxDay)) {
+            segment.lock.readLock().lock();
+            try {
+                List<PostingList> lists = new ArrayList<>();
+                for (String term : terms) {
+                    PostingList list = segment.postings.get(term);
+                    if (list == null) {
+                        break;
+                    }
+                    lists.add(list);
+                }
+                if (lists.size() == terms.size()) {
+                    segment.intersect(lists, minDay, maxDay, hits);
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+            compactIfDue(segment);
+        }
+        return sorted(hits);
+    }
+
+    /**
+     * Finds entries whose purpose contains a word starting with the prefix.
+     * @param prefix The word prefix, matched case-insensitively
+     * @return Matching entries ordered by date, start time and username
+     */
+    public List<Hit> searchPrefix(String prefix) {
+        return searchPrefix(prefix, null, null);
+    }
+
+    /**
+     * Finds entries dated within [from, to] whose purpose contains a word
+     * starting with the prefix.
+     * @param prefix The word prefix, matched case-insensitively
+     * @param from First date to include, or null for no lower bound
+     * @param to Last date to include, or null for no upper bound
+     * @return Matching entries ordered by date, start time and username
+     */
+    public List<Hit> searchPrefix(String prefix, LocalDate from, LocalDate to) {
+        List<Hit> hits = new ArrayList<>();
+        List<String> terms = tokenize(prefix);
+        if (terms.size() != 1) {
+            return hits;
+        }
+        String start = terms.get(0);
+
+        int minDay = from == null ? Integer.MIN_VALUE : (int) from.toEpochDay();
+        int maxDay = to == null ? Integer.MAX_VALUE : (int) to.toEpochDay();
+        for (Segment segment : segmentRange(minDay, maxDay)) {
+            segment.lock.readLock().lock();
+            try {
+                BitSet matched = new BitSet(segment.nextId);
+                for (PostingList list : segment.postings.subMap(start, start + Character.MAX_VALUE).values()) {
+                    PostingList.Cursor cursor = list.cursor();
+                    for (int id = cursor.next(); id >= 0; id = cursor.next()) {
+                        matched.set(id);
+                    }
+                }
+                for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+                    segment.collect(id, minDay, maxDay, hits);
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+            compactIfDue(segment);
+        }
+        return sorted(hits);
+    }
+
+    /**
+     * Gets the number of indexed diary entries.
+     * @return Number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments.values()) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.liveCount;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Rebuilds every week in which more than half of the entries have been
+     * removed. Queries already do this for the weeks they visit; call this
+     * from a maintenance thread if the index is rarely queried.
+     */
+    public void compact() {
+        for (Segment segment : segments.values()) {
+            compactIfDue(segment);
+        }
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits.
+     * @param text The text to split, may be null
+     * @return Distinct words in order of first appearance
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!terms.contains(term)) {
+                    terms.add(term);
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    // Private helper methods
+
+    private static Integer bucketOf(int epochDay) {
+        return Math.floorDiv(epochDay, DAYS_PER_BUCKET);
+    }
+
+    private Collection<Segment> segmentRange(int minDay, int maxDay) {
+        if (minDay > maxDay) {
+            return Collections.emptyList();
+        }
+        return segments.subMap(bucketOf(minDay), true, bucketOf(maxDay), true).values();
+    }
+
+    /**
+     * Compacts a segment if it is due, without waiting for bookings that
+     * are updating it; a busy segment is simply left for a later call.
+     */
+    private static void compactIfDue(Segment segment) {
+        if (!segment.isCompactionDue() || !segment.lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            if (segment.isCompactionDue()) {
+                segment.compact();
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    private static List<Hit> sorted(List<Hit> hits) {
+        hits.sort((a, b) -> {
+            int dateCompare = a.getAppointment().getDate().compareTo(b.getAppointment().getDate());
+            if (dateCompare != 0) return dateCompare;
+            int timeCompare = a.getAppointment().getStartTime().compareTo(b.getAppointment().getStartTime());
+            if (timeCompare != 0) return timeCompare;
+            return a.getUsername().compareTo(b.getUsername());
+        });
+        return hits;
+    }
+
+    /**
+     * The entries of one week. All fields are guarded by the segment lock.
+     */
+    private static class Segment {
+        private final ReentrantReadWriteLock lock;
+        // term -> ids of entries containing it
+        private final TreeMap<String, PostingList> postings;
+        private final IdentityHashMap<Appointment, int[]> entriesByAppointment;
+        private Appointment[] appointments;
+        private String[] owners;
+        private int[] epochDays;
+        private BitSet live;
+        private int nextId;
+        private int liveCount;
+        // Read without the lock by queries deciding whether to compact
+        private volatile boolean compactionDue;
+
+        Segment() {
+            this.lock = new ReentrantReadWriteLock();
+            this.postings = new TreeMap<>();
+            this.entriesByAppointment = new IdentityHashMap<>();
+            this.appointments = new Appointment[64];
+            this.owners = new String[64];
+            this.epochDays = new int[64];
+            this.live = new BitSet();
+        }
+
+        void add(String username, Appointment apt, int epochDay) {
+            if (findEntry(username, apt) >= 0) {
+                return;
+            }
+            int id = nextId++;
+            ensureCapacity(nextId);
+            appointments[id] = apt;
+            owners[id] = username;
+            epochDays[id] = epochDay;
+            live.set(id);
+            liveCount++;
+
+            int[] ids = entriesByAppointment.get(apt);
+            if (ids == null) {
+                ids = new int[] { id };
+            } else {
+                ids = Arrays.copyOf(ids, ids.length + 1);
+                ids[ids.length - 1] = id;
+            }
+            entriesByAppointment.put(apt, ids);
+
+            for (String term : tokenize(apt.getPurpose())) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    list = new PostingList();
+                    postings.put(term, list);
+                }
+                list.add(id);
+            }
+        }
+
+        void remove(String username, Appointment apt) {
+            int id = findEntry(username, apt);
+            if (id < 0) {
+                return;
+            }
+            live.clear(id);
+            liveCount--;
+            appointments[id] = null;
+            owners[id] = null;
+
+            int[] ids = entriesByAppointment.get(apt);
+            if (ids.length == 1) {
+                entriesByAppointment.remove(apt);
+            } else {
+                int[] rest = new int[ids.length - 1];
+                int k = 0;
+                for (int other : ids) {
+                    if (other != id) {
+                        rest[k++] = other;
+                    }
+                }
+                entriesByAppointment.put(apt, rest);
+            }
+
+            int dead = nextId - liveCount;
+            compactionDue = dead > liveCount && dead >= MIN_COMPACT_SIZE;
+        }
+
+        boolean isCompactionDue() {
+            return compactionDue;
+        }
+
+        private int findEntry(String username, Appointment apt) {
+            int[] ids = entriesByAppointment.get(apt);
+            if (ids != null) {
+                for (int id : ids) {
+                    if (owners[id].equals(username)) {
+                        return id;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Collects the live entries present in every list, driving the
+         * intersection from the shortest list.
+         */
+        void intersect(List<PostingList> lists, int minDay, int maxDay, List<Hit> hits) {
+            lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            PostingList.Cursor[] cursors = new PostingList.Cursor[lists.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = lists.get(i).cursor();
+            }
+
+            int candidate = cursors[0].next();
+            while (candidate >= 0) {
+                int next = candidate;
+                for (int i = 1; i < cursors.length && next == candidate; i++) {
+                    next = cursors[i].advanceTo(candidate);
+                    if (next < 0) {
+                        return;
+                    }
+                }
+                if (next == candidate) {
+                    collect(candidate, minDay, maxDay, hits);
+                    candidate = cursors[0].next();
+                } else {
+                    candidate = cursors[0].advanceTo(next);
+                }
+            }
+        }
+
+        void collect(int id, int minDay, int maxDay, List<Hit> hits) {
+            if (live.get(id) && epochDays[id] >= minDay && epochDays[id] <= maxDay) {
+                hits.add(new Hit(owners[id], appointments[id]));
+            }
+        }
+
+        private void ensureCapacity(int size) {
+            if (size > appointments.length) {
+                int capacity = Math.max(size, appointments.length * 2);
+                appointments = Arrays.copyOf(appointments, capacity);
+                owners = Arrays.copyOf(owners, capacity);
+                epochDays = Arrays.copyOf(epochDays, capacity);
+            }
+        }
+
+        /**
+         * Renumbers live entries densely, keeping their relative order, and
+         * rebuilds every posting list without the dead ids.
+         */
+        void compact() {
+            int[] newIds = new int[nextId];
+            int count = 0;
+            for (int id = 0; id < nextId; id++) {
+                if (live.get(id)) {
+                    newIds[id] = count;
+                    appointments[count] = appointments[id];
+                    owners[count] = owners[id];
+                    epochDays[count] = epochDays[id];
+                    count++;
+                } else {
+                    newIds[id] = -1;
+                }
+            }
+            Arrays.fill(appointments, count, nextId, null);
+            Arrays.fill(owners, count, nextId, null);
+
+            Iterator<Map.Entry<String, PostingList>> it = postings.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PostingList> entry = it.next();
+                PostingList rebuilt = new PostingList();
+                PostingList.Cursor cursor = entry.getValue().cursor();
+                for (int id = cursor.next(); id >= 0; id = cursor.next()) {
+                    if (newIds[id] >= 0) {
+                        rebuilt.add(newIds[id]);
+                    }
+                }
+                if (rebuilt.size() == 0) {
+                    it.remove();
+                } else {
+                    entry.setValue(rebuilt);
+                }
+            }
+
+            for (int[] ids : entriesByAppointment.values()) {
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = newIds[ids[i]];
+                }
+            }
+
+            live = new BitSet(count);
+            live.set(0, count);
+            nextId = count;
+            liveCount = count;
+            compactionDue = false;
+        }
+    }
+}
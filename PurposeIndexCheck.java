@@ -0,0 +1,244 @@
+import java.time.*;
+import java.util.*;
+
+/**
+ * Self-check for PurposeIndex. Runs random schedules, group bookings,
+ * cancels, reschedules and user deletions against a UserManager, and every
+ * so often compares word, prefix and date-range queries with a brute-force
+ * scan over all diaries. The index is attached after the first operations,
+ * so it also has to pick up existing appointments. A final phase churns one
+ * week that is never queried, so that the week is compacted by the updates
+ * themselves, and checks it again.
+ *
+ * Usage: java PurposeIndexCheck [operations] [seed]
+ */
+public class PurposeIndexCheck {
+    private static final int USERS = 300;
+    private static final LocalTime OPENING = LocalTime.of(8, 0);
+    private static final int SLOT_MINUTES = 20;
+    private static final int SLOTS_PER_DAY = 30;
+    private static final String[] PURPOSES = {
+        "MRI knee", "MRI shoulder follow-up", "Blood test", "Blood pressure check",
+        "Vaccination", "Vaccine booster", "X-ray chest", "Knee X-ray", "Checkup",
+        "Physio knee", "Dermatology follow-up", "mri KNEE review"
+    };
+    private static final String[] QUERIES = {
+        "mri", "knee", "mri knee", "blood", "follow up", "x ray", "checkup", "booster vaccine",
+        "unknown", "KNEE mri review"
+    };
+    private static final String[] PREFIXES = {"m", "mr", "vacc", "kn", "b", "x", "der", "zz"};
+
+    private final UserManager manager;
+    private final List<LocalDate> days;
+    private final Random random;
+    private PurposeIndex index;
+    private int checks;
+    private int mismatches;
+
+    public PurposeIndexCheck(List<LocalDate> days, long seed) {
+        this.manager = new UserManager();
+        this.days = days;
+        this.random = new Random(seed);
+        for (int i = 0; i < USERS; i++) {
+            manager.addUser(usernameOf(i));
+        }
+    }
+
+    /**
+     * Runs the random operations and the checks.
+     * @param operations Number of random operations
+     * @return true if every query matched the brute-force scan
+     */
+    public boolean run(int operations) {
+        long began = System.nanoTime();
+        for (int op = 0; op < operations; op++) {
+            if (op == operations / 10) {
+                index = new PurposeIndex(manager);
+            }
+            step();
+            if (index != null && op % 2000 == 0) {
+                verify();
+            }
+        }
+        verify();
+
+        // Churn one week without querying it until it holds far more dead
+        // entries than live ones, so the updates must compact it
+        LocalDate date = days.get(days.size() - 1);
+        long week = Math.floorDiv(date.toEpochDay(), 7);
+        int live = 0;
+        for (String username : manager.getAllUsernames()) {
+            for (Appointment apt : manager.getUser(username).getAppointments()) {
+                if (Math.floorDiv(apt.getDate().toEpochDay(), 7) == week) {
+                    live++;
+                }
+            }
+        }
+        User user = manager.getUser(usernameOf(0));
+        for (int i = 0; i < 10 * live + 2048; i++) {
+            LocalTime startTime = slot(i % SLOTS_PER_DAY);
+            user.scheduleAppointment(date, startTime, startTime.plusMinutes(SLOT_MINUTES), "Churn scan");
+            user.cancelAppointment(date, startTime);
+        }
+        verify();
+        index.compact();
+        verify();
+
+        double elapsed = (System.nanoTime() - began) / 1e9;
+        System.out.printf("operations=%,d checks=%,d entries=%,d mismatches=%d in %.1f s%n",
+            operations, checks, index.size(), mismatches, elapsed);
+        return mismatches == 0;
+    }
+
+    private void step() {
+        String username = usernameOf(random.nextInt(USERS));
+        LocalDate date = days.get(random.nextInt(days.size()));
+        LocalTime startTime = slot(random.nextInt(SLOTS_PER_DAY));
+        LocalTime endTime = startTime.plusMinutes(SLOT_MINUTES * (1 + random.nextInt(2)));
+        String purpose = PURPOSES[random.nextInt(PURPOSES.length)];
+
+        int choice = random.nextInt(100);
+        if (choice < 40) {
+            User user = manager.getUser(username);
+            if (user != null) {
+                user.scheduleAppointment(date, startTime, endTime, purpose);
+            }
+        } else if (choice < 55) {
+            manager.scheduleGroupAppointment(
+                Arrays.asList(username, usernameOf(random.nextInt(USERS))),
+                date, startTime, endTime, purpose);
+        } else if (choice < 75) {
+            User user = manager.getUser(username);
+            if (user != null) {
+                user.cancelAppointment(date, startTime);
+            }
+        } else if (choice < 99) {
+            LocalDate newDate = days.get(random.nextInt(days.size()));
+            manager.rescheduleAppointment(username, date, startTime, newDate, endTime,
+                                          endTime.plusMinutes(SLOT_MINUTES));
+        } else {
+            manager.deleteUser(username);
+            manager.addUser(username);
+        }
+    }
+
+    /**
+     * Compares a round of queries with a brute-force scan.
+     */
+    private void verify() {
+        List<PurposeIndex.Hit> all = new ArrayList<>();
+        for (String username : manager.getAllUsernames()) {
+            for (Appointment apt : manager.getUser(username).getAppointments()) {
+                all.add(new PurposeIndex.Hit(username, apt));
+            }
+        }
+        compare("size", all.size(), index.size());
+
+        for (String query : QUERIES) {
+            List<String> terms = PurposeIndex.tokenize(query);
+            LocalDate[] range = randomRange();
+            List<PurposeIndex.Hit> expected = new ArrayList<>();
+            for (PurposeIndex.Hit hit : all) {
+                if (inRange(hit, range)
+                        && PurposeIndex.tokenize(hit.getAppointment().getPurpose()).containsAll(terms)) {
+                    expected.add(hit);
+                }
+            }
+            compare("search " + query, expected, index.search(query, range[0], range[1]));
+        }
+
+        for (String prefix : PREFIXES) {
+            LocalDate[] range = randomRange();
+            List<PurposeIndex.Hit> expected = new ArrayList<>();
+            for (PurposeIndex.Hit hit : all) {
+                if (!inRange(hit, range)) {
+                    continue;
+                }
+                for (String word : PurposeIndex.tokenize(hit.getAppointment().getPurpose())) {
+                    if (word.startsWith(prefix)) {
+                        expected.add(hit);
+                        break;
+                    }
+                }
+            }
+            compare("prefix " + prefix, expected, index.searchPrefix(prefix, range[0], range[1]));
+        }
+    }
+
+    /**
+     * Picks an open or closed date range, sometimes beyond the booked days.
+     */
+    private LocalDate[] randomRange() {
+        LocalDate from = random.nextInt(4) == 0 ? null : days.get(random.nextInt(days.size()));
+        LocalDate to = random.nextInt(4) == 0 ? null
+            : days.get(random.nextInt(days.size())).plusDays(random.nextInt(3));
+        return new LocalDate[] { from, to };
+    }
+
+    private static boolean inRange(PurposeIndex.Hit hit, LocalDate[] range) {
+        LocalDate date = hit.getAppointment().getDate();
+        return (range[0] == null || !date.isBefore(range[0]))
+            && (range[1] == null || !date.isAfter(range[1]));
+    }
+
+    /**
+     * Compares hits in the index's order: date, start time, username. The
+     * index must return the very appointment instances held in the diaries.
+     */
+    private void compare(String what, List<PurposeIndex.Hit> expected, List<PurposeIndex.Hit> actual) {
+        expected.sort((a, b) -> {
+            int dateCompare = a.getAppointment().getDate().compareTo(b.getAppointment().getDate());
+            if (dateCompare != 0) return dateCompare;
+            int timeCompare = a.getAppointment().getStartTime().compareTo(b.getAppointment().getStartTime());
+            if (timeCompare != 0) return timeCompare;
+            return a.getUsername().compareTo(b.getUsername());
+        });
+        boolean same = expected.size() == actual.size();
+        for (int i = 0; same && i < expected.size(); i++) {
+            same = expected.get(i).getUsername().equals(actual.get(i).getUsername())
+                && expected.get(i).getAppointment() == actual.get(i).getAppointment();
+        }
+        check(what, same, expected.size() + " expected, " + actual.size() + " found");
+    }
+
+    private void compare(String what, int expected, int actual) {
+        check(what, expected == actual, expected + " expected, " + actual + " found");
+    }
+
+    private void check(String what, boolean ok, String detail) {
+        checks++;
+        if (!ok) {
+            mismatches++;
+            if (mismatches <= 10) {
+                System.out.println("Mismatch in " + what + ": " + detail);
+            }
+        }
+    }
+
+    private static LocalTime slot(int index) {
+        return OPENING.plusMinutes((long) index * SLOT_MINUTES);
+    }
+
+    private static String usernameOf(int index) {
+        return "user" + index;
+    }
+
+    /**
+     * Main entry point for the check.
+     * @param args Optional number of operations and random seed
+     */
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        List<LocalDate> days = DateTimeUtils.getBookableDays(28);
+        if (days.isEmpty()) {
+            System.out.println("No bookable dates left before " + DateTimeUtils.getMaxDate());
+            return;
+        }
+
+        if (!new PurposeIndexCheck(days, seed).run(operations)) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Represents a shared clinic resource, such as an exam room or an MRI
+ * scanner, that can be used by up to a fixed number of bookings at once.
+ * Occupancy is kept in one OccupancyTree per day, so capacity checks stay
+ * O(log n) even with thousands of bookings on the same day.
+ */
+public class Resource {
+    private String name;
+    private int capacity;
+    private Map<LocalDate, OccupancyTree> occupancy;
+    // Number of bookings per date and exact [start, end) interval
+    private Map<LocalDate, Map<Integer, Integer>> bookings;
+    private final ReentrantLock lock;
+
+    /**
+     * Creates a new resource.
+     * @param name The name of the resource
+     * @param capacity How many bookings may overlap at any minute
+     */
+    public Resource(String name, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+        this.occupancy = new HashMap<>();
+        this.bookings = new HashMap<>();
+        this.lock = new ReentrantLock();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Books one unit of this resource.
+     * @param date The date of the booking
+     * @param startTime The start time
+     * @param endTime The end time
+     * @return true if booked, false if the interval is invalid or the resource is full
+     */
+    public boolean book(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        lock.lock();
+        try {
+            if (!canBook(date, startTime, endTime)) {
+                return false;
+            }
+            addBooking(date, startTime, endTime);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases one unit previously booked for exactly this interval.
+     * @param date The date of the booking
+     * @param startTime The start time
+     * @param endTime The end time
+     * @return true if released, false if no such booking exists
+     */
+    public boolean release(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        lock.lock();
+        try {
+            return removeBooking(date, startTime, endTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the maximum number of concurrent bookings in [startTime, endTime).
+     * @param date The date to check
+     * @param startTime The start time
+     * @param endTime The end time
+     * @return Peak concurrent usage over the interval
+     */
+    public int getMaxConcurrentUsage(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        lock.lock();
+        try {
+            OccupancyTree tree = occupancy.get(date);
+            if (tree == null) {
+                return 0;
+            }
+            return tree.maxUsage(DateTimeUtils.toMinuteOfDay(startTime),
+                                 DateTimeUtils.toMinuteOfDay(endTime));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether one more booking fits in [startTime, endTime).
+     * @param date The date to check
+     * @param startTime The start time
+     * @param endTime The end time
+     * @return true if capacity is available, false otherwise
+     */
+    public boolean isAvailable(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        lock.lock();
+        try {
+            return canBook(date, startTime, endTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Unlocked occupancy changes, so that UserManager can check and book
+    // several resources together while it holds all of their locks
+
+    /**
+     * Gets the lock guarding this resource's occupancy.
+     * @return The occupancy lock
+     */
+    ReentrantLock getLock() {
+        return lock;
+    }
+
+    boolean canBook(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        if (!DateTimeUtils.isValidTimeInterval(startTime, endTime)) {
+            return false;
+        }
+        OccupancyTree tree = occupancy.get(date);
+        return tree == null || tree.maxUsage(DateTimeUtils.toMinuteOfDay(startTime),
+                                             DateTimeUtils.toMinuteOfDay(endTime)) < capacity;
+    }
+
+    void addBooking(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        int from = DateTimeUtils.toMinuteOfDay(startTime);
+        int to = DateTimeUtils.toMinuteOfDay(endTime);
+        occupancy.computeIfAbsent(date, d -> new OccupancyTree()).add(from, to, 1);
+        bookings.computeIfAbsent(date, d -> new HashMap<>()).merge(intervalKey(from, to), 1, Integer::sum);
+    }
+
+    boolean removeBooking(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        Map<Integer, Integer> day = bookings.get(date);
+        if (day == null) {
+            return false;
+        }
+        int from = DateTimeUtils.toMinuteOfDay(startTime);
+        int to = DateTimeUtils.toMinuteOfDay(endTime);
+        Integer key = intervalKey(from, to);
+        Integer count = day.get(key);
+        if (count == null) {
+            return false;
+        }
+
+        if (count == 1) {
+            day.remove(key);
+        } else {
+            day.put(key, count - 1);
+        }
+        if (day.isEmpty()) {
+            bookings.remove(date);
+            occupancy.remove(date);
+        } else {
+            occupancy.get(date).add(from, to, -1);
+        }
+        return true;
+    }
+
+    // Private helper methods
+    private static int intervalKey(int from, int to) {
+        return from * OccupancyTree.MINUTES_PER_DAY + to;
+    }
+}
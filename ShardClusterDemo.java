@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * End-to-end check of the sharded deployment on one machine.
+ *
+ * Starts several ShardServer JVMs, runs a booking workload through a
+ * ShardedUserManager while replaying the same calls on a local
+ * UserManager, and compares the two. It then tries to rebalance onto a
+ * shard that fails halfway, which must leave everything as it was, and
+ * rebalances onto one more real shard. Both results are compared again,
+ * also through a second client that must pick up the new ring by itself.
+ * The exit code is non-zero on any difference.
+ *
+ *   javac -encoding UTF-8 -d out *.java && java -cp out ShardClusterDemo
+ *
+ * Usage: java ShardClusterDemo [shards] [patients] [doctors] [bookings]
+ */
+public class ShardClusterDemo {
+    private static final int SLOT_MINUTES = 20;
+    private static final LocalTime OPENING = LocalTime.of(8, 0);
+    private static final int SLOTS_PER_DAY = 30;
+    private static final String[] PURPOSES = {
+        "Checkup", "Blood test", "MRI scan", "Follow-up", "Vaccination", "X-ray", "Consultation"
+    };
+
+    private final UserManager expected;
+    private final ShardedUserManager sharded;
+    private final List<LocalDate> days;
+    private final Random random;
+    private int mismatches;
+
+    private ShardClusterDemo(ShardedUserManager sharded, List<LocalDate> days) {
+        this.expected = new UserManager();
+        this.sharded = sharded;
+        this.days = days;
+        this.random = new Random(42);
+    }
+
+    /**
+     * Runs the same calls on both managers and counts differing answers.
+     */
+    private void runWorkload(int patients, int doctors, int bookings) {
+        for (int i = 0; i < patients; i++) {
+            same("addUser", expected.addUser("patient" + i), sharded.addUser("patient" + i));
+        }
+        for (int i = 0; i < doctors; i++) {
+            same("addUser", expected.addUser("doctor" + i), sharded.addUser("doctor" + i));
+        }
+        same("addUser duplicate", expected.addUser("patient0"), sharded.addUser("patient0"));
+
+        long began = System.nanoTime();
+        for (int i = 0; i < bookings; i++) {
+            String patient = "patient" + random.nextInt(patients);
+            String doctor = "doctor" + random.nextInt(doctors);
+            LocalDate date = days.get(random.nextInt(days.size()));
+            LocalTime startTime = OPENING.plusMinutes((long) random.nextInt(SLOTS_PER_DAY) * SLOT_MINUTES);
+            LocalTime endTime = startTime.plusMinutes(SLOT_MINUTES);
+            String purpose = PURPOSES[random.nextInt(PURPOSES.length)];
+
+            LocalDate newDate = days.get(random.nextInt(days.size()));
+            List<String> group = Arrays.asList(patient, doctor);
+            int choice = random.nextInt(20);
+            if (choice < 10) {
+                same("schedule",
+                     expected.getUser(patient).scheduleAppointment(date, startTime, endTime, purpose),
+                     sharded.getUser(patient).scheduleAppointment(date, startTime, endTime, purpose));
+            } else if (choice < 16) {
+                same("group schedule",
+                     expected.scheduleGroupAppointment(group, date, startTime, endTime, purpose),
+                     sharded.scheduleGroupAppointment(group, date, startTime, endTime, purpose));
+            } else if (choice < 17) {
+                same("cancel",
+                     expected.getUser(patient).cancelAppointment(date, startTime),
+                     sharded.getUser(patient).cancelAppointment(date, startTime));
+            } else if (choice < 18) {
+                same("group cancel",
+                     expected.cancelGroupAppointment(group, date, startTime),
+                     sharded.cancelGroupAppointment(group, date, startTime));
+            } else if (choice < 19) {
+                same("reschedule",
+                     expected.getUser(patient).rescheduleAppointment(date, startTime, newDate,
+                                                                     startTime, endTime),
+                     sharded.getUser(patient).rescheduleAppointment(date, startTime, newDate,
+                                                                    startTime, endTime));
+            } else {
+                same("group reschedule",
+                     expected.rescheduleAppointment(doctor, date, startTime, newDate, startTime, endTime),
+                     sharded.rescheduleAppointment(doctor, date, startTime, newDate, startTime, endTime));
+            }
+        }
+        double elapsed = (System.nanoTime() - began) / 1e9;
+        System.out.printf("Workload: %,d calls in %.2f s (%,.0f calls/s)%n",
+                          bookings, elapsed, bookings / elapsed);
+
+        for (int i = 0; i < patients; i += 50) {
+            same("deleteUser", expected.deleteUser("patient" + i), sharded.deleteUser("patient" + i));
+        }
+    }
+
+    /**
+     * Compares users, diaries and purpose searches of both managers.
+     * @param client The client to read the sharded state through
+     */
+    private void compareState(String stage, ShardedUserManager client) {
+        int before = mismatches;
+        long began = System.nanoTime();
+        List<String> usernames = client.getAllUsernames();
+        double listMillis = (System.nanoTime() - began) / 1e6;
+        same(stage + " usernames", expected.getAllUsernames(), usernames);
+        same(stage + " user count", expected.getUserCount(), client.getUserCount());
+
+        for (String username : expected.getAllUsernames()) {
+            Diary user = client.getUser(username);
+            if (user == null) {
+                same(stage + " user " + username, true, false);
+                continue;
+            }
+            same(stage + " diary of " + username,
+                 describe(expected.getUser(username).getAppointments()),
+                 describe(user.getAppointments()));
+        }
+
+        PurposeIndex index = new PurposeIndex(expected);
+        for (String query : new String[] { "blood test", "scan", "follow" }) {
+            same(stage + " search " + query,
+                 describeHits(index.searchPrefix(query, days.get(0), days.get(days.size() - 1))),
+                 describeHits(client.searchPurposePrefix(query, days.get(0), days.get(days.size() - 1))));
+        }
+        expected.removeAppointmentListener(index);
+
+        System.out.printf("%s: %,d users across %d shards, getAllUsernames %.1f ms, %s%n",
+                          stage, usernames.size(), client.getShardCount(), listMillis,
+                          mismatches == before ? "consistent" : "MISMATCHES");
+    }
+
+    private void same(String what, Object wanted, Object actual) {
+        if (!Objects.equals(wanted, actual)) {
+            if (mismatches < 10) {
+                System.out.println("Mismatch in " + what + ": expected " + wanted + " but got " + actual);
+            }
+            mismatches++;
+        }
+    }
+
+    private static List<String> describe(List<Appointment> appointments) {
+        List<String> result = new ArrayList<>();
+        for (Appointment apt : appointments) {
+            result.add(apt.toString());
+        }
+        return result;
+    }
+
+    private static List<String> describeHits(List<PurposeIndex.Hit> hits) {
+        List<String> result = new ArrayList<>();
+        for (PurposeIndex.Hit hit : hits) {
+            result.add(hit.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Starts a ShardServer JVM on a free port.
+     * @return The process; its port is stored in ports
+     */
+    private static Process startShard(List<InetSocketAddress> ports) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    "ShardServer", "0");
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith("LISTENING ")) {
+            process.destroy();
+            throw new IOException("Shard did not start: " + line);
+        }
+        int port = Integer.parseInt(line.substring("LISTENING ".length()).trim());
+        ports.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return process;
+    }
+
+    /**
+     * Starts a fake shard in this JVM that takes part in a rebalance like
+     * an empty shard, but drops the connection when the first user is
+     * copied to it.
+     * @return Its address
+     */
+    private static InetSocketAddress startFailingShard() throws IOException {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            try (ServerSocket listening = server) {
+                while (true) {
+                    try (Socket socket = listening.accept();
+                         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                        for (byte[] frame = ShardProtocol.readFrame(in); frame != null;
+                             frame = ShardProtocol.readFrame(in)) {
+                            // The opcode follows the four-byte epoch
+                            byte opcode = frame[4];
+                            if (opcode == ShardProtocol.IMPORT_USER) {
+                                break;
+                            }
+                            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                            DataOutputStream data = new DataOutputStream(reply);
+                            data.writeByte(ShardProtocol.OK);
+                            if (opcode == ShardProtocol.GET_RING) {
+                                data.writeInt(0);
+                                data.writeBoolean(false);
+                                ShardProtocol.writeStrings(data, Collections.<String>emptyList());
+                            } else {
+                                data.writeBoolean(true);
+                            }
+                            ShardProtocol.writeFrame(out, reply.toByteArray());
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // Wait for the next connection
+                    }
+                }
+            } catch (IOException e) {
+                // Stopped listening
+            }
+        }, "failing-shard");
+        thread.setDaemon(true);
+        thread.start();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    /**
+     * Main entry point for the demo.
+     * @param args Optional shards, patients, doctors, bookings
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int shards = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int patients = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int doctors = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        int bookings = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        List<LocalDate> days = DateTimeUtils.getBookableDays(30);
+        if (days.isEmpty()) {
+            System.out.println("No bookable dates left before " + DateTimeUtils.getMaxDate());
+            return;
+        }
+
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        boolean ok = false;
+        try {
+            for (int i = 0; i <= shards; i++) {
+                processes.add(startShard(addresses));
+            }
+            System.out.println("Started " + processes.size() + " shard JVMs on " + addresses);
+
+            try (ShardedUserManager sharded = new ShardedUserManager(addresses.subList(0, shards));
+                 ShardedUserManager other = new ShardedUserManager(addresses.subList(0, 1))) {
+                ShardClusterDemo demo = new ShardClusterDemo(sharded, days);
+                demo.runWorkload(patients, doctors, bookings);
+                demo.compareState("Before rebalance", sharded);
+
+                try {
+                    sharded.addShard(startFailingShard());
+                    demo.same("failed rebalance", "exception", "none");
+                } catch (IOException e) {
+                    System.out.println("Failed rebalance rolled back: " + e);
+                }
+                demo.compareState("After failed rebalance", sharded);
+
+                long began = System.nanoTime();
+                int moved = sharded.addShard(addresses.get(shards));
+                System.out.printf("Rebalance: moved %,d users to the new shard in %.1f ms%n",
+                                  moved, (System.nanoTime() - began) / 1e6);
+                demo.compareState("After rebalance", sharded);
+                demo.compareState("Second client", other);
+
+                sharded.shutdownShards();
+                ok = demo.mismatches == 0;
+            }
+        } finally {
+            for (Process process : processes) {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            }
+        }
+
+        System.out.println(ok ? "All checks passed" : "Checks FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}
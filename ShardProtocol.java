@@ -0,0 +1,253 @@
+import java.io.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Binary protocol spoken between ShardedUserManager and ShardServer.
+ *
+ * Every request is one frame: its length, then the sender's ring epoch,
+ * an opcode byte and the arguments. Every response is one frame too: a
+ * status byte followed by the result (OK), an error message (ERROR) or
+ * nothing (STALE_RING, when the sender's epoch is not the shard's or the
+ * ring is being changed). Because each side reads a whole frame before
+ * looking at it, a message it cannot parse never leaves the connection
+ * out of step.
+ *
+ * Strings are a presence flag plus modified UTF-8 of at most
+ * MAX_STRING_BYTES, dates are epoch days, times are seconds of the day,
+ * and lists are a length followed by their elements. Lists are only read
+ * from frames held in memory, so a length that cannot fit in the rest of
+ * the frame is rejected before anything is allocated.
+ */
+public class ShardProtocol {
+    // Single-user operations: username first
+    public static final byte ADD_USER = 1;
+    // Replies with the deleted diary, so that other shards can drop the user
+    public static final byte DELETE_USER = 2;
+    public static final byte USER_EXISTS = 3;
+    public static final byte SCHEDULE = 4;
+    public static final byte CANCEL = 5;
+    public static final byte FIND = 6;
+    public static final byte GET_BY_START = 7;
+    public static final byte RESCHEDULE = 8;
+    public static final byte GET_APPOINTMENTS = 9;
+    public static final byte GET_APPOINTMENTS_BY_DATE = 10;
+    // Moves the appointment for every holder on the shard, with the given
+    // participants
+    public static final byte RESCHEDULE_ALL = 11;
+
+    // Multi-user operations on users that live on the same shard
+    public static final byte GROUP_SCHEDULE = 20;
+    public static final byte GROUP_CANCEL = 21;
+    public static final byte REMOVE_PARTICIPANT = 22;
+
+    // Whole-shard operations, used for scatter-gather
+    public static final byte LIST_USERS = 30;
+    public static final byte USER_COUNT = 31;
+    public static final byte SEARCH_PURPOSE = 32;
+
+    // Rebalancing: copy users with their full diaries to a new shard
+    public static final byte IMPORT_USER = 40;
+    public static final byte RESET = 41;
+
+    // Ring membership, accepted whatever the sender's epoch
+    public static final byte GET_RING = 50;
+    public static final byte SET_RING = 51;
+    public static final byte FREEZE = 52;
+    public static final byte UNFREEZE = 53;
+
+    public static final byte SHUTDOWN = 99;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+    public static final byte STALE_RING = 2;
+
+    public static final int MAX_STRING_BYTES = 65535;
+    public static final int MAX_FRAME_BYTES = 64 << 20;
+
+    /**
+     * Checks whether a request is served whatever ring epoch it carries.
+     * @param opcode The request opcode
+     * @return true for ring membership requests and SHUTDOWN
+     */
+    public static boolean isRingRequest(byte opcode) {
+        return opcode == GET_RING || opcode == SET_RING || opcode == FREEZE
+            || opcode == UNFREEZE || opcode == SHUTDOWN;
+    }
+
+    /**
+     * Writes a request or response frame.
+     * @param out The stream to write to
+     * @param payload The encoded request or response
+     * @throws IOException if writing fails
+     */
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Reads a frame written by writeFrame.
+     * @param in The stream to read from
+     * @return The payload, or null if the stream ended between frames
+     * @throws IOException if reading fails or the length is invalid
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Writes a possibly null string.
+     * @param out The stream to write to
+     * @param value The string, may be null
+     * @throws IllegalArgumentException if the string is longer than
+     *         MAX_STRING_BYTES; nothing is written then
+     * @throws IOException if writing fails
+     */
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value != null && encodedLength(value) > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String of " + value.length()
+                                               + " characters is too long to send to a shard");
+        }
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by writeString.
+     * @param in The stream to read from
+     * @return The string, may be null
+     * @throws IOException if reading fails
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    public static List<String> readStrings(DataInputStream in) throws IOException {
+        // A null string is a single presence flag
+        int count = readCount(in, 1);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    public static void writeDate(DataOutputStream out, LocalDate date) throws IOException {
+        out.writeInt((int) date.toEpochDay());
+    }
+
+    public static LocalDate readDate(DataInputStream in) throws IOException {
+        return LocalDate.ofEpochDay(in.readInt());
+    }
+
+    public static void writeTime(DataOutputStream out, LocalTime time) throws IOException {
+        out.writeInt(time.toSecondOfDay());
+    }
+
+    public static LocalTime readTime(DataInputStream in) throws IOException {
+        return LocalTime.ofSecondOfDay(in.readInt());
+    }
+
+    /**
+     * Writes a possibly null appointment with its participants and resources.
+     * @param out The stream to write to
+     * @param apt The appointment, may be null
+     * @throws IOException if writing fails
+     */
+    public static void writeAppointment(DataOutputStream out, Appointment apt) throws IOException {
+        out.writeBoolean(apt != null);
+        if (apt == null) {
+            return;
+        }
+        writeDate(out, apt.getDate());
+        writeTime(out, apt.getStartTime());
+        writeTime(out, apt.getEndTime());
+        writeString(out, apt.getPurpose());
+        writeStrings(out, apt.getParticipants());
+        writeStrings(out, apt.getResources());
+    }
+
+    /**
+     * Reads an appointment written by writeAppointment.
+     * @param in The stream to read from
+     * @return The appointment, may be null
+     * @throws IOException if reading fails
+     */
+    public static Appointment readAppointment(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        LocalDate date = readDate(in);
+        LocalTime startTime = readTime(in);
+        LocalTime endTime = readTime(in);
+        String purpose = readString(in);
+        List<String> participants = readStrings(in);
+        List<String> resources = readStrings(in);
+        return new Appointment(date, startTime, endTime, purpose, participants, resources);
+    }
+
+    public static void writeAppointments(DataOutputStream out, List<Appointment> appointments)
+            throws IOException {
+        out.writeInt(appointments.size());
+        for (Appointment apt : appointments) {
+            writeAppointment(out, apt);
+        }
+    }
+
+    public static List<Appointment> readAppointments(DataInputStream in) throws IOException {
+        // A null appointment is a single presence flag
+        int count = readCount(in, 1);
+        List<Appointment> appointments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            appointments.add(readAppointment(in));
+        }
+        return appointments;
+    }
+
+    /**
+     * Reads a list length and checks it against the bytes left in the
+     * frame being read.
+     * @param minElementBytes The fewest bytes one element can take
+     * @throws IOException if the length is negative or too large
+     */
+    private static int readCount(DataInputStream in, int minElementBytes) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || (long) count * minElementBytes > in.available()) {
+            throw new IOException("Invalid list length " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the length of a string in modified UTF-8, as written by writeUTF.
+     */
+    private static int encodedLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,484 @@
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * One shard of a sharded deployment: a UserManager served over a
+ * localhost socket using ShardProtocol. Clients normally talk to shards
+ * through ShardedUserManager, which decides which shard owns each user.
+ *
+ * Each connection is handled by its own thread; the UserManager itself
+ * is thread-safe. On startup the server prints "LISTENING <port>" so a
+ * parent process can pick up the port when started with port 0.
+ *
+ * The shard also stores the ring: its members and an epoch that grows
+ * with every change. Requests carrying another epoch are answered with
+ * STALE_RING, so clients notice a rebalance made by someone else. While
+ * one connection has the shard frozen for a rebalance, requests from all
+ * other connections get STALE_RING too; the freeze ends when that
+ * connection commits a new ring, unfreezes or goes away.
+ *
+ * Usage: java ShardServer [port]
+ */
+public class ShardServer {
+    private final UserManager userManager;
+    private final PurposeIndex purposeIndex;
+    private final ServerSocket serverSocket;
+    private volatile boolean running;
+    // Held for reading while a request runs, for writing to change the ring
+    private final ReentrantReadWriteLock ringLock;
+    private int epoch;
+    private List<String> members;
+    private Socket frozenBy;
+
+    /**
+     * Creates a shard listening on the loopback interface.
+     * @param port The port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public ShardServer(int port) throws IOException {
+        this.userManager = new UserManager();
+        this.purposeIndex = new PurposeIndex(userManager);
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.running = true;
+        this.ringLock = new ReentrantReadWriteLock();
+        this.members = Collections.emptyList();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until a SHUTDOWN request arrives.
+     */
+    public void serve() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> handle(socket), "shard-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            while (true) {
+                byte[] frame = ShardProtocol.readFrame(in);
+                if (frame == null) {
+                    return;
+                }
+                DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame));
+                reply.reset();
+                byte opcode = serve(s, request, new DataOutputStream(reply), reply);
+                ShardProtocol.writeFrame(out, reply.toByteArray());
+                out.flush();
+                if (opcode == ShardProtocol.SHUTDOWN) {
+                    shutdown();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away; nothing to clean up
+        } finally {
+            unfreeze(socket);
+        }
+    }
+
+    /**
+     * Runs one request and builds its response in memory, so that a
+     * request that fails halfway still gets a complete ERROR response.
+     * @return The request's opcode
+     */
+    private byte serve(Socket socket, DataInputStream request, DataOutputStream out,
+                       ByteArrayOutputStream reply) {
+        byte opcode = 0;
+        try {
+            int requestEpoch = request.readInt();
+            opcode = request.readByte();
+            if (ShardProtocol.isRingRequest(opcode)) {
+                dispatchRing(socket, opcode, request, out);
+                return opcode;
+            }
+
+            ringLock.readLock().lock();
+            try {
+                boolean frozenByCaller = frozenBy == socket;
+                if (!frozenByCaller && (frozenBy != null || requestEpoch != epoch)) {
+                    out.writeByte(ShardProtocol.STALE_RING);
+                } else if (opcode == ShardProtocol.RESET) {
+                    respond(out, frozenByCaller && members.isEmpty() && reset());
+                } else {
+                    dispatch(opcode, request, out);
+                }
+            } finally {
+                ringLock.readLock().unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            // The request was malformed or could not be answered; the
+            // frame has been read in full, so the connection stays usable
+            reply.reset();
+            try {
+                out.writeByte(ShardProtocol.ERROR);
+                ShardProtocol.writeString(out, String.valueOf(e));
+            } catch (IOException | RuntimeException f) {
+                throw new IllegalStateException(f);
+            }
+        }
+        return opcode;
+    }
+
+    /**
+     * Runs a ring membership request.
+     */
+    private void dispatchRing(Socket socket, byte opcode, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        switch (opcode) {
+            case ShardProtocol.GET_RING:
+                ringLock.readLock().lock();
+                try {
+                    out.writeByte(ShardProtocol.OK);
+                    out.writeInt(epoch);
+                    out.writeBoolean(frozenBy != null);
+                    ShardProtocol.writeStrings(out, members);
+                } finally {
+                    ringLock.readLock().unlock();
+                }
+                break;
+            case ShardProtocol.SET_RING: {
+                int expected = in.readInt();
+                int next = in.readInt();
+                int self = in.readInt();
+                List<String> ring = ShardProtocol.readStrings(in);
+                respond(out, setRing(socket, expected, next, self, ring));
+                break;
+            }
+            case ShardProtocol.FREEZE: {
+                int expected = in.readInt();
+                ringLock.writeLock().lock();
+                try {
+                    boolean frozen = epoch == expected && (frozenBy == null || frozenBy == socket);
+                    if (frozen) {
+                        frozenBy = socket;
+                    }
+                    respond(out, frozen);
+                } finally {
+                    ringLock.writeLock().unlock();
+                }
+                break;
+            }
+            case ShardProtocol.UNFREEZE:
+                respond(out, unfreeze(socket));
+                break;
+            case ShardProtocol.SHUTDOWN:
+                out.writeByte(ShardProtocol.OK);
+                break;
+            default:
+                throw new IllegalStateException("Not a ring request: " + opcode);
+        }
+    }
+
+    /**
+     * Installs a new ring if the current epoch is the expected one and no
+     * other connection has the shard frozen, then drops the users the new
+     * ring assigns to other shards. Ends a freeze held by the caller.
+     */
+    private boolean setRing(Socket socket, int expected, int next, int self, List<String> ring) {
+        ringLock.writeLock().lock();
+        try {
+            if (epoch != expected || (frozenBy != null && frozenBy != socket)
+                    || next <= expected || self < 0 || self >= ring.size()) {
+                return false;
+            }
+            epoch = next;
+            members = Collections.unmodifiableList(new ArrayList<>(ring));
+            frozenBy = null;
+
+            ConsistentHashRing owners = new ConsistentHashRing(members);
+            for (String username : userManager.getAllUsernames()) {
+                if (owners.shardFor(username) != self) {
+                    userManager.evictUser(username);
+                }
+            }
+            return true;
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+    }
+
+    private boolean unfreeze(Socket socket) {
+        ringLock.writeLock().lock();
+        try {
+            if (frozenBy != socket) {
+                return false;
+            }
+            frozenBy = null;
+            return true;
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the arguments of one request, runs it and writes the response.
+     */
+    private void dispatch(byte opcode, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (opcode) {
+            case ShardProtocol.ADD_USER:
+                respond(out, userManager.addUser(ShardProtocol.readString(in)));
+                break;
+            case ShardProtocol.DELETE_USER: {
+                List<Appointment> diary = userManager.removeUser(ShardProtocol.readString(in));
+                respond(out, diary != null);
+                if (diary != null) {
+                    ShardProtocol.writeAppointments(out, diary);
+                }
+                break;
+            }
+            case ShardProtocol.USER_EXISTS:
+                respond(out, userManager.userExists(ShardProtocol.readString(in)));
+                break;
+            case ShardProtocol.SCHEDULE: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime startTime = ShardProtocol.readTime(in);
+                LocalTime endTime = ShardProtocol.readTime(in);
+                String purpose = ShardProtocol.readString(in);
+                respond(out, user != null && user.scheduleAppointment(date, startTime, endTime, purpose));
+                break;
+            }
+            case ShardProtocol.CANCEL: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime startTime = ShardProtocol.readTime(in);
+                respond(out, user != null && user.cancelAppointment(date, startTime));
+                break;
+            }
+            case ShardProtocol.FIND: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime time = ShardProtocol.readTime(in);
+                out.writeByte(ShardProtocol.OK);
+                ShardProtocol.writeAppointment(out, user == null ? null : user.findAppointment(date, time));
+                break;
+            }
+            case ShardProtocol.GET_BY_START: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime startTime = ShardProtocol.readTime(in);
+                out.writeByte(ShardProtocol.OK);
+                ShardProtocol.writeAppointment(out,
+                    user == null ? null : user.getAppointmentByStart(date, startTime));
+                break;
+            }
+            case ShardProtocol.RESCHEDULE: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                LocalDate oldDate = ShardProtocol.readDate(in);
+                LocalTime oldStartTime = ShardProtocol.readTime(in);
+                LocalDate newDate = ShardProtocol.readDate(in);
+                LocalTime newStartTime = ShardProtocol.readTime(in);
+                LocalTime newEndTime = ShardProtocol.readTime(in);
+                respond(out, user != null && user.rescheduleAppointment(oldDate, oldStartTime,
+                                                                        newDate, newStartTime, newEndTime));
+                break;
+            }
+            case ShardProtocol.RESCHEDULE_ALL: {
+                String username = ShardProtocol.readString(in);
+                List<String> participants = ShardProtocol.readStrings(in);
+                LocalDate oldDate = ShardProtocol.readDate(in);
+                LocalTime oldStartTime = ShardProtocol.readTime(in);
+                LocalDate newDate = ShardProtocol.readDate(in);
+                LocalTime newStartTime = ShardProtocol.readTime(in);
+                LocalTime newEndTime = ShardProtocol.readTime(in);
+                respond(out, userManager.rescheduleGroupPart(username, participants, oldDate,
+                                                             oldStartTime, newDate, newStartTime,
+                                                             newEndTime));
+                break;
+            }
+            case ShardProtocol.GET_APPOINTMENTS: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                out.writeByte(ShardProtocol.OK);
+                ShardProtocol.writeAppointments(out,
+                    user == null ? Collections.<Appointment>emptyList() : user.getAppointments());
+                break;
+            }
+            case ShardProtocol.GET_APPOINTMENTS_BY_DATE: {
+                User user = userManager.getUser(ShardProtocol.readString(in));
+                LocalDate date = ShardProtocol.readDate(in);
+                out.writeByte(ShardProtocol.OK);
+                ShardProtocol.writeAppointments(out,
+                    user == null ? Collections.<Appointment>emptyList() : user.getAppointmentsByDate(date));
+                break;
+            }
+            case ShardProtocol.GROUP_SCHEDULE: {
+                List<String> usernames = ShardProtocol.readStrings(in);
+                List<String> participants = ShardProtocol.readStrings(in);
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime startTime = ShardProtocol.readTime(in);
+                LocalTime endTime = ShardProtocol.readTime(in);
+                String purpose = ShardProtocol.readString(in);
+                respond(out, userManager.scheduleGroupPart(usernames, participants, date, startTime,
+                                                           endTime, purpose));
+                break;
+            }
+            case ShardProtocol.GROUP_CANCEL: {
+                List<String> usernames = ShardProtocol.readStrings(in);
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime startTime = ShardProtocol.readTime(in);
+                respond(out, userManager.cancelGroupAppointment(usernames, date, startTime));
+                break;
+            }
+            case ShardProtocol.REMOVE_PARTICIPANT: {
+                String removed = ShardProtocol.readString(in);
+                List<String> holders = ShardProtocol.readStrings(in);
+                LocalDate date = ShardProtocol.readDate(in);
+                LocalTime startTime = ShardProtocol.readTime(in);
+                for (String holder : holders) {
+                    User user = userManager.getUser(holder);
+                    Appointment apt = user == null ? null : user.getAppointmentByStart(date, startTime);
+                    if (apt != null) {
+                        apt.removeParticipant(removed);
+                    }
+                }
+                respond(out, true);
+                break;
+            }
+            case ShardProtocol.LIST_USERS:
+                out.writeByte(ShardProtocol.OK);
+                ShardProtocol.writeStrings(out, userManager.getAllUsernames());
+                break;
+            case ShardProtocol.USER_COUNT:
+                out.writeByte(ShardProtocol.OK);
+                out.writeInt(userManager.getUserCount());
+                break;
+            case ShardProtocol.SEARCH_PURPOSE: {
+                String query = ShardProtocol.readString(in);
+                boolean prefix = in.readBoolean();
+                LocalDate from = in.readBoolean() ? ShardProtocol.readDate(in) : null;
+                LocalDate to = in.readBoolean() ? ShardProtocol.readDate(in) : null;
+                List<PurposeIndex.Hit> hits = prefix ? purposeIndex.searchPrefix(query, from, to)
+                                                     : purposeIndex.search(query, from, to);
+                out.writeByte(ShardProtocol.OK);
+                out.writeInt(hits.size());
+                for (PurposeIndex.Hit hit : hits) {
+                    ShardProtocol.writeString(out, hit.getUsername());
+                    ShardProtocol.writeAppointment(out, hit.getAppointment());
+                }
+                break;
+            }
+            case ShardProtocol.IMPORT_USER: {
+                String username = ShardProtocol.readString(in);
+                List<Appointment> appointments = ShardProtocol.readAppointments(in);
+                respond(out, importUser(username, appointments));
+                break;
+            }
+            default:
+                out.writeByte(ShardProtocol.ERROR);
+                ShardProtocol.writeString(out, "Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Creates a user with an existing diary, as copied here by rebalancing.
+     * Appointments are restored as they were, even if already in the past.
+     * An appointment already imported for a co-participant is shared with
+     * them, just as if the group had been booked on this shard.
+     */
+    private boolean importUser(String username, List<Appointment> appointments) {
+        if (!userManager.addUser(username)) {
+            return false;
+        }
+        Set<String> parties = new TreeSet<>();
+        parties.add(username);
+        for (Appointment apt : appointments) {
+            for (String participant : apt.getParticipants()) {
+                if (userManager.userExists(participant)) {
+                    parties.add(participant);
+                }
+            }
+        }
+
+        // Only the rebalancing connection may change a frozen shard, so
+        // none of these users can have gone away since the check above
+        List<ReentrantLock> locks = userManager.lockGroup(parties, Collections.<String>emptyList());
+        if (locks == null) {
+            userManager.evictUser(username);
+            return false;
+        }
+        try {
+            User user = userManager.getUser(username);
+            for (Appointment apt : appointments) {
+                user.addAppointment(importedCopy(username, apt));
+            }
+        } finally {
+            UserManager.unlockGroup(locks);
+        }
+        return true;
+    }
+
+    /**
+     * Finds the instance of an appointment already imported for another
+     * participant. Must be called with the participants' diaries locked.
+     */
+    private Appointment importedCopy(String username, Appointment apt) {
+        for (String participant : apt.getParticipants()) {
+            User other = participant.equals(username) ? null : userManager.getUser(participant);
+            Appointment held = other == null ? null
+                             : other.getAppointmentByStart(apt.getDate(), apt.getStartTime());
+            if (held != null && held.equals(apt)
+                    && Objects.equals(held.getPurpose(), apt.getPurpose())
+                    && held.getParticipants().equals(apt.getParticipants())) {
+                return held;
+            }
+        }
+        return apt;
+    }
+
+    /**
+     * Drops every user, e.g. partial copies left by a failed rebalance.
+     */
+    private boolean reset() {
+        for (String username : userManager.getAllUsernames()) {
+            userManager.evictUser(username);
+        }
+        return true;
+    }
+
+    private static void respond(DataOutputStream out, boolean result) throws IOException {
+        out.writeByte(ShardProtocol.OK);
+        out.writeBoolean(result);
+    }
+
+    private void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Main entry point for a shard process.
+     * @param args Optional port to listen on (default: any free port)
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        ShardServer server = new ShardServer(port);
+        System.out.println("LISTENING " + server.getPort());
+        System.out.flush();
+        server.serve();
+    }
+}
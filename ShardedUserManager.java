@@ -0,0 +1,1224 @@
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Users and bookings spread over several ShardServer processes.
+ *
+ * Usernames are mapped to shards with a ConsistentHashRing, and every
+ * single-user call is forwarded to the owning shard over one socket per
+ * shard. Calls that span users, such as getAllUsernames, getUserCount and
+ * searchPurpose, send the request to every shard before reading any reply
+ * and then merge the results.
+ *
+ * The ring is stored on the shards together with an epoch that grows with
+ * every change, and each request carries the epoch it was routed with. A
+ * shard refuses requests routed with another ring; the client then fetches
+ * the current ring and retries. Every client therefore follows an addShard
+ * made by any other client, and calls made while a rebalance is running
+ * wait for it, for up to RING_WAIT_MILLIS.
+ *
+ * Group bookings whose users all live on one shard are as atomic as in a
+ * local UserManager. A group that spans shards is booked, moved or
+ * cancelled shard by shard and undone if a later shard refuses, so other
+ * clients may briefly see it on some shards only.
+ *
+ * Shared resources and appointment listeners exist only inside each
+ * shard, which is why this class implements UserDirectory rather than
+ * extending UserManager.
+ *
+ * Strings longer than ShardProtocol.MAX_STRING_BYTES are rejected with
+ * IllegalArgumentException before anything is sent. A shard that fails or
+ * does not answer within READ_TIMEOUT_MILLIS makes the call throw
+ * UncheckedIOException; its connection is closed and the next call opens
+ * a new one.
+ */
+public class ShardedUserManager implements UserDirectory, Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final long RING_WAIT_MILLIS = 60000;
+
+    // Shard id ("host:port") -> connection, kept across ring changes
+    private final Map<String, Connection> connections;
+    // Replaced as a whole, under the monitor of this object
+    private volatile Ring ring;
+    // Keeps this client from running two rebalances at once
+    private final ReentrantLock rebalanceLock;
+    private boolean closed;
+
+    /**
+     * Connects to a sharded deployment. If none of the shards belongs to a
+     * ring yet, they form a new one in the given order; otherwise the ring
+     * stored on the shards is used and the addresses only serve to find it.
+     * @param shards Shard addresses
+     * @throws IOException if a shard cannot be reached
+     */
+    public ShardedUserManager(List<InetSocketAddress> shards) throws IOException {
+        this.connections = new HashMap<>();
+        this.rebalanceLock = new ReentrantLock();
+
+        List<String> ids = new ArrayList<>();
+        List<Connection> seeds = new ArrayList<>();
+        for (InetSocketAddress address : shards) {
+            String id = idOf(address);
+            if (ids.contains(id)) {
+                throw new IllegalArgumentException("Shard " + id + " is listed twice");
+            }
+            ids.add(id);
+            seeds.add(connection(id));
+        }
+        try {
+            this.ring = joinRing(ids, seeds);
+        } catch (UncheckedIOException e) {
+            close();
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of host:port pairs.
+     * @param spec For example "localhost:7001,localhost:7002"
+     * @return The addresses in the given order
+     */
+    public static List<InetSocketAddress> parseAddresses(String spec) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            addresses.add(parseAddress(part.trim()));
+        }
+        return addresses;
+    }
+
+    @Override
+    public boolean addUser(String username) {
+        if (username == null || username.trim().isEmpty()) {
+            return false;
+        }
+        return callOwner(username, out -> {
+            out.writeByte(ShardProtocol.ADD_USER);
+            ShardProtocol.writeString(out, username);
+        }, DataInputStream::readBoolean);
+    }
+
+    /**
+     * Deletes a user, then drops them from the participants of the
+     * appointments they shared with users on any shard.
+     */
+    @Override
+    public boolean deleteUser(String username) {
+        if (username == null) {
+            return false;
+        }
+        // The shard returns the diary as it was deleted, so appointments
+        // booked up to the last moment are cleaned up on other shards too
+        List<Appointment> diary = callOwner(username, out -> {
+            out.writeByte(ShardProtocol.DELETE_USER);
+            ShardProtocol.writeString(out, username);
+        }, in -> in.readBoolean() ? ShardProtocol.readAppointments(in) : null);
+        if (diary == null) {
+            return false;
+        }
+
+        for (Appointment apt : diary) {
+            SortedSet<String> others = new TreeSet<>(apt.getParticipants());
+            others.remove(username);
+            if (others.isEmpty()) {
+                continue;
+            }
+            onRing(current -> {
+                for (Map.Entry<Integer, List<String>> group : current.partition(others).entrySet()) {
+                    current.call(group.getKey(), out -> {
+                        out.writeByte(ShardProtocol.REMOVE_PARTICIPANT);
+                        ShardProtocol.writeString(out, username);
+                        ShardProtocol.writeStrings(out, group.getValue());
+                        ShardProtocol.writeDate(out, apt.getDate());
+                        ShardProtocol.writeTime(out, apt.getStartTime());
+                    }, DataInputStream::readBoolean);
+                }
+                return null;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Gets a handle on a remote user. Every call on the handle is a round
+     * trip to the user's shard.
+     * @param username The username to look up
+     * @return The user's diary if found, null otherwise
+     */
+    @Override
+    public Diary getUser(String username) {
+        return userExists(username) ? new RemoteUser(username) : null;
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        if (username == null) {
+            return false;
+        }
+        return callOwner(username, out -> {
+            out.writeByte(ShardProtocol.USER_EXISTS);
+            ShardProtocol.writeString(out, username);
+        }, DataInputStream::readBoolean);
+    }
+
+    /**
+     * Gets all usernames by merging the sorted lists of every shard.
+     * @return List of usernames sorted alphabetically
+     */
+    @Override
+    public List<String> getAllUsernames() {
+        return onRing(current -> mergeSorted(
+            current.scatter(out -> out.writeByte(ShardProtocol.LIST_USERS), ShardProtocol::readStrings),
+            Comparator.<String>naturalOrder()));
+    }
+
+    @Override
+    public int getUserCount() {
+        return onRing(current -> {
+            int total = 0;
+            for (int count : current.scatter(out -> out.writeByte(ShardProtocol.USER_COUNT),
+                                             DataInputStream::readInt)) {
+                total += count;
+            }
+            return total;
+        });
+    }
+
+    @Override
+    public boolean hasUsers() {
+        return getUserCount() > 0;
+    }
+
+    @Override
+    public boolean scheduleGroupAppointment(Collection<String> usernames, LocalDate date,
+                                            LocalTime startTime, LocalTime endTime,
+                                            String purpose) {
+        SortedSet<String> ordered = sortedNames(usernames);
+        if (ordered == null || date == null || startTime == null || endTime == null) {
+            return false;
+        }
+        List<String> participants = new ArrayList<>(ordered);
+
+        // Users already booked; a retry after a ring change skips them
+        List<String> booked = new ArrayList<>();
+        try {
+            boolean ok = onRing(current -> {
+                SortedSet<String> remaining = new TreeSet<>(ordered);
+                remaining.removeAll(booked);
+                for (Map.Entry<Integer, List<String>> group : current.partition(remaining).entrySet()) {
+                    boolean placed = current.call(group.getKey(), out -> {
+                        out.writeByte(ShardProtocol.GROUP_SCHEDULE);
+                        ShardProtocol.writeStrings(out, group.getValue());
+                        ShardProtocol.writeStrings(out, participants);
+                        ShardProtocol.writeDate(out, date);
+                        ShardProtocol.writeTime(out, startTime);
+                        ShardProtocol.writeTime(out, endTime);
+                        ShardProtocol.writeString(out, purpose);
+                    }, DataInputStream::readBoolean);
+                    if (!placed) {
+                        return false;
+                    }
+                    booked.addAll(group.getValue());
+                }
+                return true;
+            });
+            if (!ok) {
+                cancelEach(booked, date, startTime);
+            }
+            return ok;
+        } catch (RuntimeException e) {
+            undo(e, () -> cancelEach(booked, date, startTime));
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels an appointment in several users' diaries. Every user is
+     * checked first, so nothing is removed unless all of them have an
+     * appointment starting at that time.
+     */
+    @Override
+    public boolean cancelGroupAppointment(Collection<String> usernames, LocalDate date,
+                                          LocalTime startTime) {
+        SortedSet<String> ordered = sortedNames(usernames);
+        if (ordered == null || date == null || startTime == null) {
+            return false;
+        }
+
+        // Users already cancelled; a retry after a ring change skips them
+        Set<String> cancelled = new HashSet<>();
+        AtomicBoolean all = new AtomicBoolean(true);
+        return onRing(current -> {
+            SortedSet<String> remaining = new TreeSet<>(ordered);
+            remaining.removeAll(cancelled);
+            SortedMap<Integer, List<String>> groups = current.partition(remaining);
+            if (cancelled.isEmpty() && groups.size() > 1) {
+                for (String username : remaining) {
+                    if (getByStart(current, username, date, startTime) == null) {
+                        return false;
+                    }
+                }
+            }
+            for (Map.Entry<Integer, List<String>> group : groups.entrySet()) {
+                if (!cancelOnShard(current, group.getKey(), group.getValue(), date, startTime)) {
+                    all.set(false);
+                }
+                cancelled.addAll(group.getValue());
+            }
+            return all.get();
+        });
+    }
+
+    /**
+     * Moves an appointment in every diary that holds it, on whichever
+     * shards those diaries live. Each shard moves its holders at once;
+     * if a later shard refuses, the shards already moved are moved back.
+     */
+    @Override
+    public boolean rescheduleAppointment(String username, LocalDate oldDate, LocalTime oldStartTime,
+                                         LocalDate newDate, LocalTime newStartTime,
+                                         LocalTime newEndTime) {
+        if (username == null || oldDate == null || oldStartTime == null
+                || newDate == null || newStartTime == null || newEndTime == null) {
+            return false;
+        }
+        Appointment apt = onRing(current -> getByStart(current, username, oldDate, oldStartTime));
+        if (apt == null) {
+            return false;
+        }
+        SortedSet<String> holders = holdersOf(apt, username);
+
+        // Holders whose shard has moved the appointment already
+        List<String> moved = new ArrayList<>();
+        try {
+            boolean ok = onRing(current -> {
+                SortedSet<String> remaining = new TreeSet<>(holders);
+                remaining.removeAll(moved);
+                for (Map.Entry<Integer, List<String>> group : current.partition(remaining).entrySet()) {
+                    if (!rescheduleOnShard(current, group.getKey(), group.getValue().get(0),
+                                           new ArrayList<>(holders), oldDate, oldStartTime,
+                                           newDate, newStartTime, newEndTime)) {
+                        return false;
+                    }
+                    moved.addAll(group.getValue());
+                }
+                return true;
+            });
+            if (!ok) {
+                moveBack(moved, apt, newDate, newStartTime);
+            }
+            return ok;
+        } catch (RuntimeException e) {
+            undo(e, () -> moveBack(moved, apt, newDate, newStartTime));
+            throw e;
+        }
+    }
+
+    /**
+     * Searches appointment purposes on every shard and merges the hits.
+     * @param query Words that must all appear in the purpose
+     * @param from First date (inclusive), or null for no lower bound
+     * @param to Last date (inclusive), or null for no upper bound
+     * @return Matching appointments ordered by date, start time and username
+     */
+    public List<PurposeIndex.Hit> searchPurpose(String query, LocalDate from, LocalDate to) {
+        return searchPurpose(query, false, from, to);
+    }
+
+    /**
+     * Searches appointment purposes for words starting with a prefix on
+     * every shard and merges the hits.
+     * @param prefix The start of a word in the purpose
+     * @param from First date (inclusive), or null for no lower bound
+     * @param to Last date (inclusive), or null for no upper bound
+     * @return Matching appointments ordered by date, start time and username
+     */
+    public List<PurposeIndex.Hit> searchPurposePrefix(String prefix, LocalDate from, LocalDate to) {
+        return searchPurpose(prefix, true, from, to);
+    }
+
+    /**
+     * Adds a shard and moves to it every user the larger ring assigns to it,
+     * together with their diary.
+     *
+     * All shards are frozen first, so calls from every client wait until
+     * the rebalance is over. The users are then copied to the new shard,
+     * and only the final commit installs the new ring, which makes each
+     * old shard drop the users it gave away. Any failure before the commit
+     * unfreezes the shards on the old ring with nothing lost, and the new
+     * shard is cleared when addShard is tried again. Only one client can
+     * rebalance at a time; a second one fails with IllegalStateException.
+     * The commit itself is one short message per shard; a shard that dies
+     * during it leaves the ring unusable until it is restarted.
+     * @param address The address of a running shard that is in no ring
+     * @return The number of users moved
+     * @throws IOException if a shard cannot be reached
+     */
+    public int addShard(InetSocketAddress address) throws IOException {
+        rebalanceLock.lock();
+        try {
+            Ring current = reloadRing();
+            String id = idOf(address);
+            if (current.owners.getShards().contains(id)) {
+                throw new IllegalArgumentException("Shard " + id + " is already in the ring");
+            }
+
+            // Rebalance over connections of its own, so that this client's
+            // other calls are held back by the freeze like everyone else's
+            List<Connection> admin = new ArrayList<>();
+            for (String member : current.owners.getShards()) {
+                admin.add(new Connection(parseAddress(member)));
+            }
+            Connection target = new Connection(address);
+            admin.add(target);
+            int newShard = admin.size() - 1;
+
+            boolean committing = false;
+            try {
+                if (target.getRing().epoch != 0) {
+                    throw new IllegalArgumentException("Shard " + id + " already belongs to a ring");
+                }
+                for (int shard = 0; shard <= newShard; shard++) {
+                    int expected = shard == newShard ? 0 : current.epoch;
+                    boolean frozen = admin.get(shard).call(current.epoch, out -> {
+                        out.writeByte(ShardProtocol.FREEZE);
+                        out.writeInt(expected);
+                    }, DataInputStream::readBoolean);
+                    if (!frozen) {
+                        throw new IllegalStateException("The ring is being changed by another client");
+                    }
+                }
+                target.call(current.epoch, out -> out.writeByte(ShardProtocol.RESET),
+                            DataInputStream::readBoolean);
+
+                ConsistentHashRing grown = current.owners.withShard(id);
+                int moved = 0;
+                for (int shard = 0; shard < newShard; shard++) {
+                    Connection source = admin.get(shard);
+                    List<String> usernames = source.call(current.epoch,
+                        out -> out.writeByte(ShardProtocol.LIST_USERS), ShardProtocol::readStrings);
+                    for (String username : usernames) {
+                        if (grown.shardFor(username) == newShard) {
+                            copyUser(current.epoch, username, source, target);
+                            moved++;
+                        }
+                    }
+                }
+
+                // The new shard goes first, so every user always has an owner
+                committing = true;
+                for (int i = 0; i <= newShard; i++) {
+                    int shard = (newShard + i) % (newShard + 1);
+                    if (!setRing(admin.get(shard), shard == newShard ? 0 : current.epoch,
+                                 current.epoch + 1, shard, grown.getShards())) {
+                        throw new IllegalStateException("Shard " + grown.getShards().get(shard)
+                                                        + " refused the new ring");
+                    }
+                }
+                reloadRing();
+                return moved;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                if (!committing) {
+                    rollback(admin, target, current.epoch);
+                }
+                for (Connection connection : admin) {
+                    connection.close();
+                }
+            }
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    public int getShardCount() {
+        return ring.shards.size();
+    }
+
+    /**
+     * Asks every shard process to stop, then closes the connections.
+     */
+    public void shutdownShards() {
+        onRing(current -> current.scatter(out -> out.writeByte(ShardProtocol.SHUTDOWN), in -> Boolean.TRUE));
+        close();
+    }
+
+    @Override
+    public void close() {
+        synchronized (connections) {
+            closed = true;
+            for (Connection connection : connections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A handle on a user stored in a shard. It keeps no state of its own
+     * and forwards every call to the shard that currently owns the user.
+     */
+    private class RemoteUser implements Diary {
+        private final String username;
+
+        RemoteUser(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public boolean scheduleAppointment(LocalDate date, LocalTime startTime,
+                                           LocalTime endTime, String purpose) {
+            if (date == null || startTime == null || endTime == null) {
+                return false;
+            }
+            return callOwner(username, out -> {
+                out.writeByte(ShardProtocol.SCHEDULE);
+                ShardProtocol.writeString(out, username);
+                ShardProtocol.writeDate(out, date);
+                ShardProtocol.writeTime(out, startTime);
+                ShardProtocol.writeTime(out, endTime);
+                ShardProtocol.writeString(out, purpose);
+            }, DataInputStream::readBoolean);
+        }
+
+        @Override
+        public boolean cancelAppointment(LocalDate date, LocalTime startTime) {
+            if (date == null || startTime == null) {
+                return false;
+            }
+            return callOwner(username, out -> {
+                out.writeByte(ShardProtocol.CANCEL);
+                ShardProtocol.writeString(out, username);
+                ShardProtocol.writeDate(out, date);
+                ShardProtocol.writeTime(out, startTime);
+            }, DataInputStream::readBoolean);
+        }
+
+        @Override
+        public Appointment findAppointment(LocalDate date, LocalTime time) {
+            if (date == null || time == null) {
+                return null;
+            }
+            return callOwner(username, out -> {
+                out.writeByte(ShardProtocol.FIND);
+                ShardProtocol.writeString(out, username);
+                ShardProtocol.writeDate(out, date);
+                ShardProtocol.writeTime(out, time);
+            }, ShardProtocol::readAppointment);
+        }
+
+        @Override
+        public Appointment getAppointmentByStart(LocalDate date, LocalTime startTime) {
+            if (date == null || startTime == null) {
+                return null;
+            }
+            return onRing(current -> getByStart(current, username, date, startTime));
+        }
+
+        /**
+         * Moves an appointment held by this user alone. As with User, one
+         * still held by other diaries, on any shard, is left alone.
+         */
+        @Override
+        public boolean rescheduleAppointment(LocalDate oldDate, LocalTime oldStartTime,
+                                             LocalDate newDate, LocalTime newStartTime,
+                                             LocalTime newEndTime) {
+            if (oldDate == null || oldStartTime == null
+                    || newDate == null || newStartTime == null || newEndTime == null) {
+                return false;
+            }
+            Appointment apt = getAppointmentByStart(oldDate, oldStartTime);
+            if (apt == null || holdersOf(apt, username).size() > 1) {
+                return false;
+            }
+            return callOwner(username, out -> {
+                out.writeByte(ShardProtocol.RESCHEDULE);
+                ShardProtocol.writeString(out, username);
+                ShardProtocol.writeDate(out, oldDate);
+                ShardProtocol.writeTime(out, oldStartTime);
+                ShardProtocol.writeDate(out, newDate);
+                ShardProtocol.writeTime(out, newStartTime);
+                ShardProtocol.writeTime(out, newEndTime);
+            }, DataInputStream::readBoolean);
+        }
+
+        @Override
+        public List<Appointment> getAppointments() {
+            return callOwner(username, out -> {
+                out.writeByte(ShardProtocol.GET_APPOINTMENTS);
+                ShardProtocol.writeString(out, username);
+            }, ShardProtocol::readAppointments);
+        }
+
+        @Override
+        public List<Appointment> getAppointmentsByDate(LocalDate date) {
+            if (date == null) {
+                return new ArrayList<>();
+            }
+            return callOwner(username, out -> {
+                out.writeByte(ShardProtocol.GET_APPOINTMENTS_BY_DATE);
+                ShardProtocol.writeString(out, username);
+                ShardProtocol.writeDate(out, date);
+            }, ShardProtocol::readAppointments);
+        }
+
+        /**
+         * Visits a snapshot of the diary fetched in one round trip.
+         */
+        @Override
+        public void forEachAppointment(Consumer<Appointment> action) {
+            for (Appointment apt : getAppointments()) {
+                action.accept(apt);
+            }
+        }
+    }
+
+    // Ring handling
+
+    /**
+     * The ring as read from the shards at one epoch.
+     */
+    private static class Ring {
+        private final int epoch;
+        private final List<Connection> shards;
+        private final ConsistentHashRing owners;
+
+        Ring(int epoch, List<Connection> shards, ConsistentHashRing owners) {
+            this.epoch = epoch;
+            this.shards = shards;
+            this.owners = owners;
+        }
+
+        <T> T call(int shard, Request request, Response<T> response) {
+            return shards.get(shard).call(epoch, request, response);
+        }
+
+        /**
+         * Sends the same request to every shard, then reads every reply, so
+         * the shards work in parallel. Connections are locked in ring order,
+         * which keeps concurrent scatters from deadlocking each other. Every
+         * request that was sent has its reply read, even after a failure,
+         * so no connection is left holding an unread reply.
+         */
+        <T> List<T> scatter(Request request, Response<T> response) {
+            List<T> results = new ArrayList<>();
+            RuntimeException failure = null;
+            int locked = 0;
+            try {
+                for (Connection connection : shards) {
+                    connection.lock.lock();
+                    locked++;
+                }
+                int sent = 0;
+                for (Connection connection : shards) {
+                    try {
+                        connection.send(epoch, request);
+                        sent++;
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        break;
+                    }
+                }
+                for (int i = 0; i < sent; i++) {
+                    try {
+                        results.add(shards.get(i).receive(response));
+                    } catch (RuntimeException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            } finally {
+                for (int i = locked - 1; i >= 0; i--) {
+                    shards.get(i).lock.unlock();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        }
+
+        /**
+         * Groups usernames by owning shard.
+         * @return Sorted usernames per shard index
+         */
+        SortedMap<Integer, List<String>> partition(SortedSet<String> usernames) {
+            SortedMap<Integer, List<String>> groups = new TreeMap<>();
+            for (String username : usernames) {
+                int shard = owners.shardFor(username);
+                List<String> group = groups.get(shard);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(shard, group);
+                }
+                group.add(username);
+            }
+            return groups;
+        }
+    }
+
+    /**
+     * A ring as reported by one shard.
+     */
+    private static class RingState {
+        private final int epoch;
+        private final boolean frozen;
+        private final List<String> members;
+
+        RingState(int epoch, boolean frozen, List<String> members) {
+            this.epoch = epoch;
+            this.frozen = frozen;
+            this.members = members;
+        }
+    }
+
+    /**
+     * Thrown when a shard refuses a request routed with an outdated ring.
+     * The request has not been run, so it can be retried on the new ring.
+     */
+    private static class StaleRingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StaleRingException() {
+            super("Shard ring has changed", null, false, false);
+        }
+    }
+
+    /**
+     * Runs an operation on the current ring, fetching the ring again and
+     * retrying for as long as a shard reports it stale.
+     */
+    private <T> T onRing(Function<Ring, T> operation) {
+        Ring current = ring;
+        while (true) {
+            try {
+                return operation.apply(current);
+            } catch (StaleRingException e) {
+                current = refreshRing(current);
+            }
+        }
+    }
+
+    private <T> T callOwner(String username, Request request, Response<T> response) {
+        return onRing(current -> current.call(current.owners.shardFor(username), request, response));
+    }
+
+    /**
+     * Replaces a stale ring with the one now stored on the shards, unless
+     * another thread has done so already.
+     */
+    private synchronized Ring refreshRing(Ring stale) {
+        if (ring == stale) {
+            ring = awaitRing(stale.shards);
+        }
+        return ring;
+    }
+
+    /**
+     * Fetches the ring stored on the shards, whether or not a shard has
+     * reported the current one stale.
+     */
+    private synchronized Ring reloadRing() {
+        ring = awaitRing(ring.shards);
+        return ring;
+    }
+
+    /**
+     * Forms a new ring from the given shards if none of them is in a ring
+     * yet, then waits for the ring stored on them.
+     */
+    private Ring joinRing(List<String> ids, List<Connection> seeds) {
+        boolean fresh = true;
+        for (Connection seed : seeds) {
+            RingState state = seed.getRing();
+            fresh &= state.epoch == 0 && !state.frozen;
+        }
+        if (fresh) {
+            // A client starting at the same time may win some of these;
+            // both then adopt whichever ring ends up on the shards
+            for (int shard = 0; shard < seeds.size(); shard++) {
+                setRing(seeds.get(shard), 0, 1, shard, ids);
+            }
+        }
+        return awaitRing(seeds);
+    }
+
+    /**
+     * Polls the shards until every member of the newest ring reports it
+     * and none of them is frozen for a rebalance.
+     * @throws IllegalStateException if that takes longer than RING_WAIT_MILLIS
+     */
+    private Ring awaitRing(Collection<Connection> probes) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RING_WAIT_MILLIS);
+        long pauseMillis = 1;
+        while (true) {
+            RingState newest = null;
+            for (Connection probe : probes) {
+                RingState state = probe.getRing();
+                if (newest == null || state.epoch > newest.epoch) {
+                    newest = state;
+                }
+            }
+
+            if (newest != null && newest.epoch > 0) {
+                List<Connection> shards = new ArrayList<>();
+                boolean settled = true;
+                for (String member : newest.members) {
+                    Connection connection = connection(member);
+                    RingState state = connection.getRing();
+                    settled &= state.epoch == newest.epoch && !state.frozen;
+                    shards.add(connection);
+                }
+                if (settled) {
+                    return new Ring(newest.epoch, shards, new ConsistentHashRing(newest.members));
+                }
+            }
+
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Shard ring did not settle within "
+                                                + RING_WAIT_MILLIS + " ms");
+            }
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the shard ring", e);
+            }
+            pauseMillis = Math.min(pauseMillis * 2, 100);
+        }
+    }
+
+    /**
+     * Installs a ring on one shard if it is still at the expected epoch.
+     * @return true if installed, false if the shard has moved on
+     */
+    private static boolean setRing(Connection shard, int expected, int epoch, int index,
+                                   List<String> members) {
+        return shard.call(expected, out -> {
+            out.writeByte(ShardProtocol.SET_RING);
+            out.writeInt(expected);
+            out.writeInt(epoch);
+            out.writeInt(index);
+            ShardProtocol.writeStrings(out, members);
+        }, DataInputStream::readBoolean);
+    }
+
+    /**
+     * Clears the new shard and unfreezes every shard after a failed
+     * rebalance. Failures are ignored; a shard also unfreezes when the
+     * connection that froze it is closed.
+     */
+    private static void rollback(List<Connection> admin, Connection target, int epoch) {
+        try {
+            target.call(epoch, out -> out.writeByte(ShardProtocol.RESET), DataInputStream::readBoolean);
+        } catch (RuntimeException e) {
+            // Cleared by the next attempt instead
+        }
+        for (Connection connection : admin) {
+            try {
+                connection.call(epoch, out -> out.writeByte(ShardProtocol.UNFREEZE),
+                                DataInputStream::readBoolean);
+            } catch (RuntimeException e) {
+                // Closing the connection unfreezes it as well
+            }
+        }
+    }
+
+    /**
+     * Copies a user and their diary to the new shard. The source keeps its
+     * copy until the new ring is committed.
+     */
+    private static void copyUser(int epoch, String username, Connection source, Connection target) {
+        List<Appointment> diary = source.call(epoch, out -> {
+            out.writeByte(ShardProtocol.GET_APPOINTMENTS);
+            ShardProtocol.writeString(out, username);
+        }, ShardProtocol::readAppointments);
+
+        boolean imported = target.call(epoch, out -> {
+            out.writeByte(ShardProtocol.IMPORT_USER);
+            ShardProtocol.writeString(out, username);
+            ShardProtocol.writeAppointments(out, diary);
+        }, DataInputStream::readBoolean);
+        if (!imported) {
+            throw new IllegalStateException("User " + username + " already exists on the new shard");
+        }
+    }
+
+    // Cross-shard helpers
+
+    private static Appointment getByStart(Ring current, String username, LocalDate date,
+                                          LocalTime startTime) {
+        return current.call(current.owners.shardFor(username), out -> {
+            out.writeByte(ShardProtocol.GET_BY_START);
+            ShardProtocol.writeString(out, username);
+            ShardProtocol.writeDate(out, date);
+            ShardProtocol.writeTime(out, startTime);
+        }, ShardProtocol::readAppointment);
+    }
+
+    private static boolean cancelOnShard(Ring current, int shard, List<String> usernames,
+                                         LocalDate date, LocalTime startTime) {
+        return current.call(shard, out -> {
+            out.writeByte(ShardProtocol.GROUP_CANCEL);
+            ShardProtocol.writeStrings(out, usernames);
+            ShardProtocol.writeDate(out, date);
+            ShardProtocol.writeTime(out, startTime);
+        }, DataInputStream::readBoolean);
+    }
+
+    private static boolean rescheduleOnShard(Ring current, int shard, String username,
+                                             List<String> participants,
+                                             LocalDate oldDate, LocalTime oldStartTime,
+                                             LocalDate newDate, LocalTime newStartTime,
+                                             LocalTime newEndTime) {
+        return current.call(shard, out -> {
+            out.writeByte(ShardProtocol.RESCHEDULE_ALL);
+            ShardProtocol.writeString(out, username);
+            ShardProtocol.writeStrings(out, participants);
+            ShardProtocol.writeDate(out, oldDate);
+            ShardProtocol.writeTime(out, oldStartTime);
+            ShardProtocol.writeDate(out, newDate);
+            ShardProtocol.writeTime(out, newStartTime);
+            ShardProtocol.writeTime(out, newEndTime);
+        }, DataInputStream::readBoolean);
+    }
+
+    /**
+     * Finds the users whose diaries hold the appointment: the given user
+     * and every participant with an identical appointment in their diary.
+     */
+    private SortedSet<String> holdersOf(Appointment apt, String username) {
+        SortedSet<String> holders = new TreeSet<>();
+        holders.add(username);
+        for (String participant : apt.getParticipants()) {
+            Appointment held = onRing(current -> getByStart(current, participant, apt.getDate(),
+                                                            apt.getStartTime()));
+            if (apt.equals(held) && Objects.equals(apt.getPurpose(), held.getPurpose())
+                    && apt.getParticipants().equals(held.getParticipants())) {
+                holders.add(participant);
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Undoes a partly booked group by cancelling it user by user.
+     */
+    private void cancelEach(List<String> usernames, LocalDate date, LocalTime startTime) {
+        for (String username : usernames) {
+            callOwner(username, out -> {
+                out.writeByte(ShardProtocol.CANCEL);
+                ShardProtocol.writeString(out, username);
+                ShardProtocol.writeDate(out, date);
+                ShardProtocol.writeTime(out, startTime);
+            }, DataInputStream::readBoolean);
+        }
+    }
+
+    /**
+     * Moves a partly rescheduled appointment back to where it was.
+     */
+    private void moveBack(List<String> holders, Appointment apt, LocalDate newDate,
+                          LocalTime newStartTime) {
+        if (holders.isEmpty()) {
+            return;
+        }
+        onRing(current -> {
+            for (Map.Entry<Integer, List<String>> group
+                     : current.partition(new TreeSet<>(holders)).entrySet()) {
+                rescheduleOnShard(current, group.getKey(), group.getValue().get(0),
+                                  apt.getParticipants(), newDate, newStartTime, apt.getDate(),
+                                  apt.getStartTime(), apt.getEndTime());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs an undo step after a failure, keeping the original failure.
+     */
+    private static void undo(RuntimeException failure, Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private List<PurposeIndex.Hit> searchPurpose(String query, boolean prefix,
+                                                 LocalDate from, LocalDate to) {
+        if (query == null) {
+            return new ArrayList<>();
+        }
+        Request request = out -> {
+            out.writeByte(ShardProtocol.SEARCH_PURPOSE);
+            ShardProtocol.writeString(out, query);
+            out.writeBoolean(prefix);
+            out.writeBoolean(from != null);
+            if (from != null) {
+                ShardProtocol.writeDate(out, from);
+            }
+            out.writeBoolean(to != null);
+            if (to != null) {
+                ShardProtocol.writeDate(out, to);
+            }
+        };
+        Response<List<PurposeIndex.Hit>> response = in -> {
+            int count = in.readInt();
+            List<PurposeIndex.Hit> hits = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String username = ShardProtocol.readString(in);
+                hits.add(new PurposeIndex.Hit(username, ShardProtocol.readAppointment(in)));
+            }
+            return hits;
+        };
+
+        Comparator<PurposeIndex.Hit> order = Comparator
+            .comparing((PurposeIndex.Hit hit) -> hit.getAppointment().getDate())
+            .thenComparing(hit -> hit.getAppointment().getStartTime())
+            .thenComparing(PurposeIndex.Hit::getUsername);
+        return onRing(current -> mergeSorted(current.scatter(request, response), order));
+    }
+
+    /**
+     * Merges lists that are each sorted into one sorted list.
+     */
+    private static <T> List<T> mergeSorted(List<List<T>> lists, Comparator<? super T> order) {
+        int total = 0;
+        for (List<T> list : lists) {
+            total += list.size();
+        }
+
+        // Heap entries are {list index, position in list}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, lists.size()),
+            (a, b) -> order.compare(lists.get(a[0]).get(a[1]), lists.get(b[0]).get(b[1])));
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[] {i, 0});
+            }
+        }
+
+        List<T> merged = new ArrayList<>(total);
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<T> list = lists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (head[1] + 1 < list.size()) {
+                heads.add(new int[] {head[0], head[1] + 1});
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Sorts and de-duplicates usernames.
+     * @return The sorted names, or null if the list is empty or contains null
+     */
+    private static SortedSet<String> sortedNames(Collection<String> usernames) {
+        if (usernames == null || usernames.isEmpty()) {
+            return null;
+        }
+        SortedSet<String> ordered = new TreeSet<>();
+        for (String username : usernames) {
+            if (username == null) {
+                return null;
+            }
+            ordered.add(username);
+        }
+        return ordered;
+    }
+
+    // Wire plumbing
+
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private Connection connection(String id) {
+        synchronized (connections) {
+            Connection connection = connections.get(id);
+            if (connection == null) {
+                connection = new Connection(parseAddress(id));
+                if (closed) {
+                    connection.close();
+                }
+                connections.put(id, connection);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * One socket to one shard, opened on first use and again after any
+     * failure. Requests on a connection are strictly one at a time; the
+     * lock keeps concurrent callers from interleaving.
+     */
+    private static class Connection {
+        private final InetSocketAddress address;
+        private final ReentrantLock lock;
+        // Written under the lock; read without it by close()
+        private volatile Socket socket;
+        private volatile boolean closed;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+            this.lock = new ReentrantLock();
+        }
+
+        <T> T call(int epoch, Request request, Response<T> response) {
+            lock.lock();
+            try {
+                send(epoch, request);
+                return receive(response);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        RingState getRing() {
+            return call(0, out -> out.writeByte(ShardProtocol.GET_RING),
+                        in -> new RingState(in.readInt(), in.readBoolean(), ShardProtocol.readStrings(in)));
+        }
+
+        /**
+         * Sends one request. The request is encoded in full before anything
+         * is written, so one that cannot be encoded leaves the connection
+         * untouched. Must be called with the lock held.
+         */
+        void send(int epoch, Request request) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            try {
+                DataOutputStream data = new DataOutputStream(payload);
+                data.writeInt(epoch);
+                request.write(data);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Request cannot be encoded", e);
+            }
+            try {
+                if (socket == null) {
+                    open();
+                }
+                ShardProtocol.writeFrame(out, payload.toByteArray());
+                out.flush();
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        /**
+         * Reads the reply to the request sent last. The reply is one frame,
+         * so a reply that cannot be parsed still leaves the connection in
+         * step; only a failure while reading the frame closes the socket.
+         * Must be called with the lock held.
+         */
+        <T> T receive(Response<T> response) {
+            byte status;
+            String message = null;
+            DataInputStream reply;
+            try {
+                if (socket == null) {
+                    throw new IOException("Not connected");
+                }
+                byte[] frame = ShardProtocol.readFrame(in);
+                if (frame == null) {
+                    throw new EOFException("Shard closed the connection");
+                }
+                reply = new DataInputStream(new ByteArrayInputStream(frame));
+                status = reply.readByte();
+                if (status == ShardProtocol.ERROR) {
+                    message = ShardProtocol.readString(reply);
+                }
+            } catch (IOException e) {
+                throw failed(e);
+            }
+
+            if (status == ShardProtocol.STALE_RING) {
+                throw new StaleRingException();
+            } else if (status == ShardProtocol.ERROR) {
+                throw new IllegalStateException("Shard " + address + ": " + message);
+            } else if (status != ShardProtocol.OK) {
+                throw new IllegalStateException("Shard " + address + " sent unknown status " + status);
+            }
+
+            try {
+                return response.read(reply);
+            } catch (IOException e) {
+                throw new IllegalStateException("Shard " + address + " sent a malformed reply", e);
+            }
+        }
+
+        private void open() throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            Socket opened = new Socket();
+            try {
+                opened.connect(address, CONNECT_TIMEOUT_MILLIS);
+                opened.setSoTimeout(READ_TIMEOUT_MILLIS);
+                opened.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(opened.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(opened.getOutputStream()));
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            socket = opened;
+        }
+
+        private UncheckedIOException failed(IOException cause) {
+            disconnect();
+            return new UncheckedIOException("Shard " + address + " failed", cause);
+        }
+
+        private void disconnect() {
+            Socket current = socket;
+            socket = null;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            disconnect();
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + hostAndPort);
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, colon),
+                                     Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    private static String idOf(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+}
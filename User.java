@@ -1,13 +1,18 @@
 
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 
 /**
  * Represents a user in the appointment system with their own appointment diary.
  */
-public class User {
+public class User implements Diary {
     private String username;
     private List<Appointment> appointments;
+    private final ReentrantLock lock;
+    private final List<AppointmentListener> listeners;
+    private boolean deleted;
     private static final LocalDate MAX_DATE = LocalDate.of(2026, 12, 31);
     
     /**
@@ -15,8 +20,21 @@ public class User {
      * @param username The username for this user
      */
     public User(String username) {
+        this(username, Collections.<AppointmentListener>emptyList());
+    }
+    
+    /**
+     * Creates a new user whose diary changes are reported to the given
+     * listeners. The list is shared, not copied, so listeners registered
+     * later are notified as well.
+     * @param username The username for this user
+     * @param listeners Listeners to notify of diary changes
+     */
+    User(String username, List<AppointmentListener> listeners) {
         this.username = username;
         this.appointments = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        this.listeners = listeners;
     }
     
     public String getUsername() { 
@@ -33,24 +51,18 @@ public class User {
      */
     public boolean scheduleAppointment(LocalDate date, LocalTime startTime, 
                                      LocalTime endTime, String purpose) {
-        // Validate date
-        if (!isValidDate(date)) {
-            return false;
-        }
-        
-        // Check for time validity
-        if (startTime.isAfter(endTime) || startTime.equals(endTime)) {
-            return false;
-        }
-        
-        // Check for conflicts
-        if (hasConflict(date, startTime, endTime)) {
-            return false;
+        lock.lock();
+        try {
+            if (!canSchedule(date, startTime, endTime)) {
+                return false;
+            }
+            
+            addAppointment(new Appointment(date, startTime, endTime, purpose,
+                                           Collections.singletonList(username)));
+            return true;
+        } finally {
+            lock.unlock();
         }
-        
-        appointments.add(new Appointment(date, startTime, endTime, purpose));
-        sortAppointments();
-        return true;
     }
     
     /**
@@ -60,8 +72,22 @@ public class User {
      * @return true if cancelled successfully, false if not found
      */
     public boolean cancelAppointment(LocalDate date, LocalTime startTime) {
-        return appointments.removeIf(apt -> 
-            apt.getDate().equals(date) && apt.getStartTime().equals(startTime));
+        lock.lock();
+        try {
+            boolean removed = false;
+            Iterator<Appointment> it = appointments.iterator();
+            while (it.hasNext()) {
+                Appointment apt = it.next();
+                if (apt.getDate().equals(date) && apt.getStartTime().equals(startTime)) {
+                    it.remove();
+                    fireRemoved(apt);
+                    removed = true;
+                }
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
     }
     
     /**
@@ -71,12 +97,17 @@ public class User {
      * @return The appointment if found, null otherwise
      */
     public Appointment findAppointment(LocalDate date, LocalTime time) {
-        for (Appointment apt : appointments) {
-            if (apt.getDate().equals(date) && apt.containsTime(time)) {
-                return apt;
+        lock.lock();
+        try {
+            for (Appointment apt : appointments) {
+                if (apt.getDate().equals(date) && apt.containsTime(time)) {
+                    return apt;
+                }
             }
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
     
     /**
@@ -86,16 +117,24 @@ public class User {
      * @return The appointment if found, null otherwise
      */
     public Appointment getAppointmentByStart(LocalDate date, LocalTime startTime) {
-        for (Appointment apt : appointments) {
-            if (apt.getDate().equals(date) && apt.getStartTime().equals(startTime)) {
-                return apt;
+        lock.lock();
+        try {
+            for (Appointment apt : appointments) {
+                if (apt.getDate().equals(date) && apt.getStartTime().equals(startTime)) {
+                    return apt;
+                }
             }
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
     
     /**
-     * Reschedules an existing appointment to a new date/time.
+     * Reschedules an existing appointment to a new date/time. Appointments
+     * shared with other diaries or holding resources are left alone; move
+     * them with UserManager.rescheduleAppointment, which moves them for
+     * everyone.
      * @param oldDate Current date of the appointment
      * @param oldStartTime Current start time
      * @param newDate New date
@@ -106,25 +145,30 @@ public class User {
     public boolean rescheduleAppointment(LocalDate oldDate, LocalTime oldStartTime,
                                        LocalDate newDate, LocalTime newStartTime, 
                                        LocalTime newEndTime) {
-        Appointment apt = getAppointmentByStart(oldDate, oldStartTime);
-        if (apt == null) {
-            return false;
-        }
-        
-        String purpose = apt.getPurpose();
-        
-        // Remove old appointment
-        if (!cancelAppointment(oldDate, oldStartTime)) {
-            return false;
-        }
-        
-        // Try to schedule new appointment
-        if (scheduleAppointment(newDate, newStartTime, newEndTime, purpose)) {
-            return true;
-        } else {
-            // Restore old appointment if new scheduling fails
-            scheduleAppointment(oldDate, apt.getStartTime(), apt.getEndTime(), purpose);
-            return false;
+        lock.lock();
+        try {
+            Appointment apt = getAppointmentByStart(oldDate, oldStartTime);
+            if (apt == null || apt.getHolderCount() > 1 || !apt.getResources().isEmpty()) {
+                return false;
+            }
+            
+            String purpose = apt.getPurpose();
+            
+            // Remove old appointment
+            if (!cancelAppointment(oldDate, oldStartTime)) {
+                return false;
+            }
+            
+            // Try to schedule new appointment
+            if (scheduleAppointment(newDate, newStartTime, newEndTime, purpose)) {
+                return true;
+            } else {
+                // Restore old appointment if new scheduling fails
+                addAppointment(apt);
+                return false;
+            }
+        } finally {
+            lock.unlock();
         }
     }
     
@@ -133,7 +177,12 @@ public class User {
      * @return List of appointments (copy)
      */
     public List<Appointment> getAppointments() {
-        return new ArrayList<>(appointments);
+        lock.lock();
+        try {
+            return new ArrayList<>(appointments);
+        } finally {
+            lock.unlock();
+        }
     }
     
     /**
@@ -142,13 +191,119 @@ public class User {
      * @return List of appointments on that date
      */
     public List<Appointment> getAppointmentsByDate(LocalDate date) {
-        List<Appointment> result = new ArrayList<>();
-        for (Appointment apt : appointments) {
-            if (apt.getDate().equals(date)) {
-                result.add(apt);
+        lock.lock();
+        try {
+            List<Appointment> result = new ArrayList<>();
+            for (Appointment apt : appointments) {
+                if (apt.getDate().equals(date)) {
+                    result.add(apt);
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Visits every appointment in date and time order without copying the
+     * diary. The diary is locked while the action runs, so the action
+     * should be short and must not call back into other users.
+     * @param action The action to run for each appointment
+     */
+    public void forEachAppointment(Consumer<Appointment> action) {
+        lock.lock();
+        try {
+            for (Appointment apt : appointments) {
+                action.accept(apt);
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Package-private hooks for multi-party operations in UserManager.
+    // Callers must hold getLock() for the duration of a check-then-insert.
+    
+    /**
+     * Gets the lock guarding this user's diary.
+     * @return The diary lock
+     */
+    ReentrantLock getLock() {
+        return lock;
+    }
+    
+    /**
+     * Checks whether an appointment could be added without violating the
+     * date range, interval or overlap rules.
+     * @param date The date of the appointment
+     * @param startTime The start time
+     * @param endTime The end time
+     * @return true if the slot is free and valid, false otherwise
+     */
+    boolean canSchedule(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        // A deleted user's diary may still be referenced by callers that
+        // looked it up earlier; it must stay empty
+        if (deleted) {
+            return false;
+        }
+        
+        // Validate date
+        if (!isValidDate(date)) {
+            return false;
+        }
+        
+        // Check for time validity
+        if (startTime.isAfter(endTime) || startTime.equals(endTime)) {
+            return false;
+        }
+        
+        // Check for conflicts
+        return !hasConflict(date, startTime, endTime);
+    }
+    
+    /**
+     * Inserts an already validated appointment into this diary.
+     * @param apt The appointment to insert
+     */
+    void addAppointment(Appointment apt) {
+        appointments.add(apt);
+        sortAppointments();
+        for (AppointmentListener listener : listeners) {
+            listener.appointmentAdded(username, apt);
+        }
+    }
+    
+    /**
+     * Removes this exact appointment instance from the diary.
+     * @param apt The appointment to remove
+     * @return true if it was present, false otherwise
+     */
+    boolean removeAppointment(Appointment apt) {
+        if (!appointments.removeIf(a -> a == apt)) {
+            return false;
+        }
+        fireRemoved(apt);
+        return true;
+    }
+    
+    /**
+     * Marks this user as deleted, so that no further appointments can be
+     * scheduled in the diary.
+     */
+    void markDeleted() {
+        deleted = true;
+    }
+    
+    /**
+     * Removes every appointment, e.g. when the user is deleted.
+     */
+    void clearAppointments() {
+        List<Appointment> removed = new ArrayList<>(appointments);
+        appointments.clear();
+        for (Appointment apt : removed) {
+            fireRemoved(apt);
         }
-        return result;
     }
     
     // Private helper methods
@@ -166,6 +321,12 @@ public class User {
         return false;
     }
     
+    private void fireRemoved(Appointment apt) {
+        for (AppointmentListener listener : listeners) {
+            listener.appointmentRemoved(username, apt);
+        }
+    }
+    
     private void sortAppointments() {
         appointments.sort((a1, a2) -> {
             int dateCompare = a1.getDate().compareTo(a2.getDate());
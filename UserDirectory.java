@@ -0,0 +1,86 @@
+import java.time.*;
+import java.util.*;
+
+/**
+ * The user and booking operations shared by an in-process UserManager
+ * and a ShardedUserManager, so that front ends such as ConsoleUI work
+ * with either.
+ *
+ * Shared resources, appointment listeners and batch locking only exist
+ * in UserManager; components built on them (PurposeIndex,
+ * UtilizationStats, BatchRescheduler, DiaryExporter) run next to a
+ * UserManager, e.g. inside each shard.
+ */
+public interface UserDirectory {
+    /**
+     * Adds a new user.
+     * @param username The username for the new user
+     * @return true if user added successfully, false if username already exists
+     */
+    boolean addUser(String username);
+
+    /**
+     * Deletes a user and drops them from the participants of appointments
+     * they shared.
+     * @param username The username to delete
+     * @return true if deleted successfully, false if user not found
+     */
+    boolean deleteUser(String username);
+
+    /**
+     * Gets a user's diary.
+     * @param username The username to look up
+     * @return The diary if found, null otherwise
+     */
+    Diary getUser(String username);
+
+    boolean userExists(String username);
+
+    /**
+     * Gets a list of all usernames.
+     * @return List of usernames sorted alphabetically
+     */
+    List<String> getAllUsernames();
+
+    int getUserCount();
+
+    boolean hasUsers();
+
+    /**
+     * Books one appointment into several users' diaries, all or nothing.
+     * @param usernames The users taking part (duplicates are ignored)
+     * @param date The date of the appointment
+     * @param startTime The start time
+     * @param endTime The end time
+     * @param purpose The purpose of the appointment
+     * @return true if booked for everyone, false if any user is unknown or busy
+     */
+    boolean scheduleGroupAppointment(Collection<String> usernames, LocalDate date,
+                                     LocalTime startTime, LocalTime endTime, String purpose);
+
+    /**
+     * Cancels an appointment in several users' diaries. Nothing is removed
+     * unless every user has an appointment starting at that time.
+     * @param usernames The users taking part (duplicates are ignored)
+     * @param date The date of the appointment
+     * @param startTime The start time of the appointment
+     * @return true if cancelled for everyone, false otherwise
+     */
+    boolean cancelGroupAppointment(Collection<String> usernames, LocalDate date,
+                                   LocalTime startTime);
+
+    /**
+     * Moves an appointment to a new date and time in every diary that
+     * holds it.
+     * @param username A user whose diary holds the appointment
+     * @param oldDate Current date of the appointment
+     * @param oldStartTime Current start time
+     * @param newDate New date
+     * @param newStartTime New start time
+     * @param newEndTime New end time
+     * @return true if moved, false if not found or the new slot is not free
+     *         for every holder
+     */
+    boolean rescheduleAppointment(String username, LocalDate oldDate, LocalTime oldStartTime,
+                                  LocalDate newDate, LocalTime newStartTime, LocalTime newEndTime);
+}
@@ -1,14 +1,23 @@
 
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 
 /**
  * Manages all users in the appointment system.
  */
-public class UserManager {
+public class UserManager implements UserDirectory {
     private Map<String, User> users;
+    private Map<String, Resource> resources;
+    private List<AppointmentListener> listeners;
     
     public UserManager() {
-        this.users = new HashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.resources = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.listeners.add(new HolderTracker());
     }
     
     /**
@@ -21,12 +30,7 @@ public class UserManager {
             return false;
         }
         
-        if (users.containsKey(username)) {
-            return false;
-        }
-        
-        users.put(username, new User(username));
-        return true;
+        return users.putIfAbsent(username, new User(username, listeners)) == null;
     }
     
     /**
@@ -35,7 +39,40 @@ public class UserManager {
      * @return true if deleted successfully, false if user not found
      */
     public boolean deleteUser(String username) {
-        return users.remove(username) != null;
+        return removeUser(username) != null;
+    }
+    
+    /**
+     * Deletes a user like deleteUser and returns what their diary held at
+     * that moment, for sharded deployments where other processes must drop
+     * the user from the participants of the same appointments.
+     * @param username The username to delete
+     * @return The deleted diary's appointments, or null if user not found
+     */
+    List<Appointment> removeUser(String username) {
+        User user = username == null ? null : users.remove(username);
+        if (user == null) {
+            return null;
+        }
+        
+        user.getLock().lock();
+        try {
+            List<Appointment> diary = user.getAppointments();
+            
+            // Other diaries sharing these appointments no longer list the
+            // deleted user, so group cancels over the participants still work
+            for (Appointment apt : diary) {
+                apt.removeParticipant(username);
+            }
+            
+            // Let listeners drop the deleted diary's appointments; this also
+            // frees resources held only by the deleted diary
+            user.markDeleted();
+            user.clearAppointments();
+            return diary;
+        } finally {
+            user.getLock().unlock();
+        }
     }
     
     /**
@@ -44,7 +81,7 @@ public class UserManager {
      * @return The User object if found, null otherwise
      */
     public User getUser(String username) {
-        return users.get(username);
+        return username == null ? null : users.get(username);
     }
     
     /**
@@ -53,7 +90,7 @@ public class UserManager {
      * @return true if user exists, false otherwise
      */
     public boolean userExists(String username) {
-        return users.containsKey(username);
+        return username != null && users.containsKey(username);
     }
     
     /**
@@ -66,6 +103,36 @@ public class UserManager {
         return usernames;
     }
     
+    /**
+     * Registers a listener that is told about every appointment added to
+     * or removed from any user's diary from now on. Existing appointments
+     * are not replayed; use forEachUser to catch up.
+     * @param listener The listener to add
+     */
+    public void addAppointmentListener(AppointmentListener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Unregisters a listener added with addAppointmentListener.
+     * @param listener The listener to remove
+     * @return true if it was registered, false otherwise
+     */
+    public boolean removeAppointmentListener(AppointmentListener listener) {
+        return listeners.remove(listener);
+    }
+    
+    /**
+     * Visits every user without copying or sorting the user list. Users
+     * added or deleted while the visit runs may or may not be seen.
+     * @param action The action to run for each user
+     */
+    public void forEachUser(Consumer<User> action) {
+        for (User user : users.values()) {
+            action.accept(user);
+        }
+    }
+    
     /**
      * Gets the total number of users in the system.
      * @return Number of users
@@ -81,4 +148,554 @@ public class UserManager {
     public boolean hasUsers() {
         return !users.isEmpty();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Adds a shared resource, such as an exam room or a scanner.
+     * @param name The name of the resource
+     * @param capacity How many appointments may use it at the same time
+     * @return true if added, false if the name is invalid or taken
+     */
+    public boolean addResource(String name, int capacity) {
+        if (name == null || name.trim().isEmpty() || capacity < 1) {
+            return false;
+        }
+        
+        return resources.putIfAbsent(name, new Resource(name, capacity)) == null;
+    }
+    
+    /**
+     * Deletes a resource from the system.
+     * @param name The resource to delete
+     * @return true if deleted successfully, false if not found
+     */
+    public boolean deleteResource(String name) {
+        return name != null && resources.remove(name) != null;
+    }
+    
+    /**
+     * Gets a resource by name.
+     * @param name The name to look up
+     * @return The Resource object if found, null otherwise
+     */
+    public Resource getResource(String name) {
+        return name == null ? null : resources.get(name);
+    }
+    
+    /**
+     * Gets a list of all resource names in the system.
+     * @return List of resource names sorted alphabetically
+     */
+    public List<String> getAllResourceNames() {
+        List<String> names = new ArrayList<>(resources.keySet());
+        Collections.sort(names);
+        return names;
+    }
+    
+    /**
+     * Books one appointment into several users' diaries at once, e.g. the
+     * patient, the doctor and a nurse. Either every diary receives the
+     * appointment or none does.
+     * 
+     * Diary locks are always taken in username order, so concurrent group
+     * bookings over overlapping users cannot deadlock and bookings over
+     * disjoint users never contend.
+     * @param usernames The users taking part (duplicates are ignored)
+     * @param date The date of the appointment
+     * @param startTime The start time
+     * @param endTime The end time
+     * @param purpose The purpose of the appointment
+     * @return true if booked for everyone, false if any user is unknown or busy
+     */
+    public boolean scheduleGroupAppointment(Collection<String> usernames, LocalDate date,
+                                            LocalTime startTime, LocalTime endTime,
+                                            String purpose) {
+        return scheduleGroupAppointment(usernames, Collections.<String>emptyList(),
+                                        date, startTime, endTime, purpose);
+    }
+    
+    /**
+     * Books one appointment into several users' diaries and reserves one
+     * unit of each listed resource, all or nothing.
+     * 
+     * Locks are taken for all users in username order first, then for all
+     * resources in name order, which keeps a single global lock order.
+     * @param usernames The users taking part (duplicates are ignored)
+     * @param resourceNames The resources to reserve (duplicates are ignored)
+     * @param date The date of the appointment
+     * @param startTime The start time
+     * @param endTime The end time
+     * @param purpose The purpose of the appointment
+     * @return true if booked, false if anything is unknown, busy or full
+     */
+    public boolean scheduleGroupAppointment(Collection<String> usernames,
+                                            Collection<String> resourceNames, LocalDate date,
+                                            LocalTime startTime, LocalTime endTime,
+                                            String purpose) {
+        List<User> group = resolveGroup(usernames);
+        List<Resource> reserved = resolveResources(resourceNames);
+        if (group == null || reserved == null
+                || date == null || startTime == null || endTime == null) {
+            return false;
+        }
+        return book(group, usernamesOf(group), reserved, date, startTime, endTime, purpose);
+    }
+    
+    /**
+     * Cancels an appointment in several users' diaries at once. Nothing is
+     * removed unless every user has an appointment starting at that time.
+     * Resources held by the appointment are released once it is no longer
+     * in any diary.
+     * @param usernames The users taking part (duplicates are ignored)
+     * @param date The date of the appointment
+     * @param startTime The start time of the appointment
+     * @return true if cancelled for everyone, false otherwise
+     */
+    public boolean cancelGroupAppointment(Collection<String> usernames, LocalDate date,
+                                          LocalTime startTime) {
+        List<User> group = resolveGroup(usernames);
+        if (group == null || date == null || startTime == null) {
+            return false;
+        }
+        
+        List<ReentrantLock> locks = locksOf(group, Collections.<Resource>emptyList());
+        lockAll(locks);
+        try {
+            if (!isRegistered(group, Collections.<Resource>emptyList())) {
+                return false;
+            }
+            List<Appointment> found = new ArrayList<>();
+            for (User user : group) {
+                Appointment apt = user.getAppointmentByStart(date, startTime);
+                if (apt == null) {
+                    return false;
+                }
+                found.add(apt);
+            }
+            
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).removeAppointment(found.get(i));
+            }
+            return true;
+        } finally {
+            unlockAll(locks);
+        }
+    }
+    
+    /**
+     * Moves an appointment to a new date and time in every diary that holds
+     * it, together with its resources. Either all of them move or none does.
+     * 
+     * Unlike User.rescheduleAppointment, this also moves appointments shared
+     * with other users or holding resources.
+     * @param username A user whose diary holds the appointment
+     * @param oldDate Current date of the appointment
+     * @param oldStartTime Current start time
+     * @param newDate New date
+     * @param newStartTime New start time
+     * @param newEndTime New end time
+     * @return true if moved, false if not found or the new slot is not free
+     *         for every holder and resource
+     */
+    public boolean rescheduleAppointment(String username, LocalDate oldDate, LocalTime oldStartTime,
+                                         LocalDate newDate, LocalTime newStartTime,
+                                         LocalTime newEndTime) {
+        return reschedule(username, null, oldDate, oldStartTime, newDate, newStartTime, newEndTime);
+    }
+    
+    // Helpers for multi-party operations
+    
+    /**
+     * Moves an appointment for all of its holders here.
+     * @param participants Participants of the moved appointment, or null
+     *                     for its holders
+     */
+    private boolean reschedule(String username, List<String> participants, LocalDate oldDate,
+                               LocalTime oldStartTime, LocalDate newDate, LocalTime newStartTime,
+                               LocalTime newEndTime) {
+        User user = getUser(username);
+        if (user == null || oldDate == null || oldStartTime == null
+                || newDate == null || newStartTime == null || newEndTime == null) {
+            return false;
+        }
+        
+        while (true) {
+            Appointment apt = user.getAppointmentByStart(oldDate, oldStartTime);
+            if (apt == null) {
+                return false;
+            }
+            
+            // The parties are only known after reading the appointment, so
+            // lock them and then check that it has not changed meanwhile
+            Set<String> parties = new TreeSet<>(apt.getParticipants());
+            parties.add(username);
+            List<User> group = new ArrayList<>();
+            for (String name : parties) {
+                User party = users.get(name);
+                if (party != null) {
+                    group.add(party);
+                }
+            }
+            List<Resource> reserved = new ArrayList<>();
+            for (String name : new TreeSet<>(apt.getResources())) {
+                Resource resource = resources.get(name);
+                if (resource != null) {
+                    reserved.add(resource);
+                }
+            }
+            
+            List<ReentrantLock> locks = locksOf(group, reserved);
+            lockAll(locks);
+            try {
+                if (users.get(username) != user) {
+                    return false;
+                }
+                if (user.getAppointmentByStart(oldDate, oldStartTime) != apt
+                        || !isRegistered(group, reserved)) {
+                    continue;
+                }
+                List<User> holders = new ArrayList<>();
+                for (User party : group) {
+                    if (party.getAppointmentByStart(oldDate, oldStartTime) == apt) {
+                        holders.add(party);
+                    }
+                }
+                if (holders.size() != apt.getHolderCount()) {
+                    continue;
+                }
+                return moveAppointment(apt, holders, participants == null ? usernamesOf(holders) : participants,
+                                       reserved, newDate, newStartTime, newEndTime);
+            } finally {
+                unlockAll(locks);
+            }
+        }
+    }
+    
+    /**
+     * Books an appointment into every diary of the group and reserves its
+     * resources, all or nothing.
+     */
+    private boolean book(List<User> group, List<String> participants, List<Resource> reserved,
+                         LocalDate date, LocalTime startTime, LocalTime endTime, String purpose) {
+        List<ReentrantLock> locks = locksOf(group, reserved);
+        lockAll(locks);
+        try {
+            // A user deleted while we waited for the locks must not get the
+            // appointment: nothing would ever remove it from their diary, so
+            // its resources would never be released either. Nothing is
+            // reserved until this check has passed
+            if (!isRegistered(group, reserved)) {
+                return false;
+            }
+            for (User user : group) {
+                if (!user.canSchedule(date, startTime, endTime)) {
+                    return false;
+                }
+            }
+            for (Resource resource : reserved) {
+                if (!resource.canBook(date, startTime, endTime)) {
+                    return false;
+                }
+            }
+            
+            List<String> resourceList = new ArrayList<>();
+            for (Resource resource : reserved) {
+                resource.addBooking(date, startTime, endTime);
+                resourceList.add(resource.getName());
+            }
+            Appointment apt = new Appointment(date, startTime, endTime, purpose,
+                                              participants, resourceList);
+            for (User user : group) {
+                user.addAppointment(apt);
+            }
+            return true;
+        } finally {
+            unlockAll(locks);
+        }
+    }
+    
+    /**
+     * Replaces an appointment in all of its holders' diaries, or puts it
+     * back unchanged. Must be called with every holder and resource locked.
+     */
+    private boolean moveAppointment(Appointment apt, List<User> holders, List<String> participants,
+                                    List<Resource> reserved, LocalDate newDate,
+                                    LocalTime newStartTime, LocalTime newEndTime) {
+        // Removing it from the last holder releases its resources, which
+        // frees the old slot for an overlapping new one
+        for (User holder : holders) {
+            holder.removeAppointment(apt);
+        }
+        
+        boolean fits = true;
+        for (User holder : holders) {
+            fits &= holder.canSchedule(newDate, newStartTime, newEndTime);
+        }
+        for (Resource resource : reserved) {
+            fits &= resource.canBook(newDate, newStartTime, newEndTime);
+        }
+        
+        Appointment placed = apt;
+        List<String> resourceList = new ArrayList<>();
+        for (Resource resource : reserved) {
+            resourceList.add(resource.getName());
+        }
+        if (fits) {
+            placed = new Appointment(newDate, newStartTime, newEndTime, apt.getPurpose(),
+                                     participants, resourceList);
+        }
+        for (Resource resource : reserved) {
+            resource.addBooking(placed.getDate(), placed.getStartTime(), placed.getEndTime());
+        }
+        for (User holder : holders) {
+            holder.addAppointment(placed);
+        }
+        return fits;
+    }
+    
+    
+    /**
+     * Books the part of a group appointment whose users live in this
+     * manager, for sharded deployments where the other participants live
+     * in other processes. The appointment lists all participants.
+     * @param usernames The users in this manager taking part
+     * @param participants Every participant of the appointment
+     * @param date The date of the appointment
+     * @param startTime The start time
+     * @param endTime The end time
+     * @param purpose The purpose of the appointment
+     * @return true if booked for every local user, false otherwise
+     */
+    boolean scheduleGroupPart(Collection<String> usernames, List<String> participants,
+                              LocalDate date, LocalTime startTime, LocalTime endTime,
+                              String purpose) {
+        List<User> group = resolveGroup(usernames);
+        if (group == null || participants == null
+                || date == null || startTime == null || endTime == null) {
+            return false;
+        }
+        return book(group, participants, Collections.<Resource>emptyList(),
+                    date, startTime, endTime, purpose);
+    }
+    
+    /**
+     * Moves the part of an appointment held in this manager, for sharded
+     * deployments where its other holders live in other processes.
+     * @param username A user here whose diary holds the appointment
+     * @param participants Every participant of the moved appointment
+     * @param oldDate Current date of the appointment
+     * @param oldStartTime Current start time
+     * @param newDate New date
+     * @param newStartTime New start time
+     * @param newEndTime New end time
+     * @return true if moved for every holder here, false otherwise
+     */
+    boolean rescheduleGroupPart(String username, List<String> participants, LocalDate oldDate,
+                                LocalTime oldStartTime, LocalDate newDate, LocalTime newStartTime,
+                                LocalTime newEndTime) {
+        return participants != null
+            && reschedule(username, participants, oldDate, oldStartTime, newDate, newStartTime, newEndTime);
+    }
+    
+    /**
+     * Removes a user whose diary has been moved to another process. Unlike
+     * deleteUser, appointments shared with the user keep listing them as a
+     * participant.
+     * @param username The user to remove
+     * @return true if removed, false if not found
+     */
+    boolean evictUser(String username) {
+        User user = username == null ? null : users.remove(username);
+        if (user == null) {
+            return false;
+        }
+        
+        user.getLock().lock();
+        try {
+            user.clearAppointments();
+        } finally {
+            user.getLock().unlock();
+        }
+        return true;
+    }
+    
+    /**
+     * Locks the given users' diaries and resources in the global lock order
+     * (users by username, then resources by name) for batch operations
+     * that need to change several diaries at once.
+     * @param usernames The users to lock
+     * @param resourceNames The resources to lock
+     * @return The locks held, to pass to unlockGroup, or null if any user
+     *         or resource is unknown or was deleted meanwhile (nothing is
+     *         locked then)
+     */
+    List<ReentrantLock> lockGroup(Collection<String> usernames, Collection<String> resourceNames) {
+        List<User> group = resolveGroup(usernames);
+        List<Resource> reserved = resolveResources(resourceNames);
+        if (group == null || reserved == null) {
+            return null;
+        }
+        List<ReentrantLock> locks = locksOf(group, reserved);
+        lockAll(locks);
+        if (!isRegistered(group, reserved)) {
+            unlockAll(locks);
+            return null;
+        }
+        return locks;
+    }
+    
+    /**
+     * Releases locks taken by lockGroup.
+     * @param locks The locks to release
+     */
+    static void unlockGroup(List<ReentrantLock> locks) {
+        unlockAll(locks);
+    }
+    
+    /**
+     * Looks up the given users sorted by username, which is the global
+     * lock order for diaries.
+     * @return The users, or null if the list is empty or any user is unknown
+     */
+    private List<User> resolveGroup(Collection<String> usernames) {
+        if (usernames == null || usernames.isEmpty()) {
+            return null;
+        }
+        
+        SortedSet<String> ordered = sortedNames(usernames);
+        if (ordered == null) {
+            return null;
+        }
+        
+        List<User> group = new ArrayList<>();
+        for (String username : ordered) {
+            User user = users.get(username);
+            if (user == null) {
+                return null;
+            }
+            group.add(user);
+        }
+        return group;
+    }
+    
+    /**
+     * Looks up the given resources sorted by name.
+     * @return The resources, or null if any resource is unknown
+     */
+    private List<Resource> resolveResources(Collection<String> names) {
+        if (names == null) {
+            return null;
+        }
+        
+        SortedSet<String> ordered = sortedNames(names);
+        if (ordered == null) {
+            return null;
+        }
+        
+        List<Resource> result = new ArrayList<>();
+        for (String name : ordered) {
+            Resource resource = resources.get(name);
+            if (resource == null) {
+                return null;
+            }
+            result.add(resource);
+        }
+        return result;
+    }
+    
+    /**
+     * Checks that the given users and resources are still the ones
+     * registered under their names. Call with their locks held, after
+     * resolving them without locks.
+     */
+    private boolean isRegistered(List<User> group, List<Resource> reserved) {
+        for (User user : group) {
+            if (users.get(user.getUsername()) != user) {
+                return false;
+            }
+        }
+        for (Resource resource : reserved) {
+            if (resources.get(resource.getName()) != resource) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void releaseResources(Appointment apt) {
+        for (String name : new TreeSet<>(apt.getResources())) {
+            Resource resource = resources.get(name);
+            if (resource == null) {
+                continue;
+            }
+            resource.getLock().lock();
+            try {
+                resource.removeBooking(apt.getDate(), apt.getStartTime(), apt.getEndTime());
+            } finally {
+                resource.getLock().unlock();
+            }
+        }
+    }
+    
+    /**
+     * Counts the diaries holding each appointment instance and releases an
+     * appointment's resources when the last of them drops it, whether by a
+     * single cancel, a group cancel, a reschedule or a deleted user.
+     */
+    private class HolderTracker implements AppointmentListener {
+        @Override
+        public void appointmentAdded(String username, Appointment apt) {
+            apt.addHolder();
+        }
+        
+        @Override
+        public void appointmentRemoved(String username, Appointment apt) {
+            // Called under the diary lock; resources sort after every user,
+            // so taking their locks now still follows the global order
+            if (apt.removeHolder() == 0 && !apt.getResources().isEmpty()) {
+                releaseResources(apt);
+            }
+        }
+    }
+    
+    private static SortedSet<String> sortedNames(Collection<String> names) {
+        SortedSet<String> ordered = new TreeSet<>();
+        for (String name : names) {
+            if (name == null) {
+                return null;
+            }
+            ordered.add(name);
+        }
+        return ordered;
+    }
+    
+    private static List<ReentrantLock> locksOf(List<User> group, List<Resource> reserved) {
+        List<ReentrantLock> locks = new ArrayList<>();
+        for (User user : group) {
+            locks.add(user.getLock());
+        }
+        for (Resource resource : reserved) {
+            locks.add(resource.getLock());
+        }
+        return locks;
+    }
+    
+    private static void lockAll(List<ReentrantLock> locks) {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+    
+    private static void unlockAll(List<ReentrantLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+    
+    private static List<String> usernamesOf(List<User> group) {
+        List<String> names = new ArrayList<>();
+        for (User user : group) {
+            names.add(user.getUsername());
+        }
+        return names;
+    }
+}
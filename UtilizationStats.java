@@ -0,0 +1,261 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Booked-minute counters for the operations dashboard, kept up to date
+ * incrementally as appointments are scheduled, cancelled and rescheduled.
+ *
+ * Each user has one PrefixSumSeries of booked minutes per day, and the
+ * clinic as a whole has one per day plus one per hour of the day. An
+ * appointment changes at most 26 counters, so updates are O(1). Range
+ * queries are answered from prefix sums, so a dashboard refresh costs
+ * O(buckets) rather than O(appointments).
+ *
+ * Clinic-wide figures are person-minutes: a group appointment counts
+ * once for every diary it is in.
+ *
+ * Events arrive under the diary lock of the user they concern, so no lock
+ * is shared by all bookings. A user's series is guarded by its own monitor,
+ * which only that user's bookings and queries about that user take. The
+ * clinic-wide series are striped by thread, like a LongAdder: each booking
+ * thread adds to its own stripe and queries add up the stripes. A query
+ * that runs during bookings may miss some of them.
+ */
+public class UtilizationStats implements AppointmentListener {
+    private static final int STRIPES = 16;
+
+    private final UserManager userManager;
+    private final ConcurrentMap<String, PrefixSumSeries> dailyByUser;
+    private final Stripe[] clinic;
+    // Users whose existing diary has been counted; only used when attached
+    private final Set<String> counted;
+
+    /**
+     * Creates empty counters that only reflect the events they receive.
+     */
+    public UtilizationStats() {
+        this(null);
+    }
+
+    /**
+     * Creates counters over all current appointments of the given users
+     * and keeps them up to date with later changes.
+     * @param userManager The users to track, or null for none
+     */
+    public UtilizationStats(UserManager userManager) {
+        this.userManager = userManager;
+        this.dailyByUser = new ConcurrentHashMap<>();
+        this.clinic = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            clinic[i] = new Stripe();
+        }
+        this.counted = ConcurrentHashMap.newKeySet();
+
+        if (userManager != null) {
+            userManager.addAppointmentListener(this);
+            userManager.forEachUser(user -> {
+                user.getLock().lock();
+                try {
+                    countExisting(user);
+                } finally {
+                    user.getLock().unlock();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void appointmentAdded(String username, Appointment apt) {
+        update(username, apt, 1);
+    }
+
+    @Override
+    public void appointmentRemoved(String username, Appointment apt) {
+        update(username, apt, -1);
+    }
+
+    /**
+     * Gets a user's booked minutes in [from, to].
+     * @param username The user, or null for the whole clinic
+     * @param from First date (inclusive)
+     * @param to Last date (inclusive)
+     * @return Booked minutes
+     */
+    public long getBookedMinutes(String username, LocalDate from, LocalDate to) {
+        return bucketed(username, new LocalDate[] { from, to.plusDays(1) })[0];
+    }
+
+    /**
+     * Gets booked minutes per day.
+     * @param username The user, or null for the whole clinic
+     * @param from The first day
+     * @param days Number of days
+     * @return Booked minutes for each day
+     */
+    public long[] getDailyMinutes(String username, LocalDate from, int days) {
+        LocalDate[] starts = new LocalDate[days + 1];
+        for (int i = 0; i <= days; i++) {
+            starts[i] = from.plusDays(i);
+        }
+        return bucketed(username, starts);
+    }
+
+    /**
+     * Gets booked minutes per week.
+     * @param username The user, or null for the whole clinic
+     * @param from The first day of the first week
+     * @param weeks Number of weeks
+     * @return Booked minutes for each week
+     */
+    public long[] getWeeklyMinutes(String username, LocalDate from, int weeks) {
+        LocalDate[] starts = new LocalDate[weeks + 1];
+        for (int i = 0; i <= weeks; i++) {
+            starts[i] = from.plusWeeks(i);
+        }
+        return bucketed(username, starts);
+    }
+
+    /**
+     * Gets booked minutes per calendar month.
+     * @param username The user, or null for the whole clinic
+     * @param from The first month
+     * @param months Number of months
+     * @return Booked minutes for each month
+     */
+    public long[] getMonthlyMinutes(String username, YearMonth from, int months) {
+        LocalDate[] starts = new LocalDate[months + 1];
+        for (int i = 0; i <= months; i++) {
+            starts[i] = from.plusMonths(i).atDay(1);
+        }
+        return bucketed(username, starts);
+    }
+
+    /**
+     * Gets the clinic-wide booked minutes falling in each hour of the day,
+     * summed over [from, to].
+     * @param from First date (inclusive)
+     * @param to Last date (inclusive)
+     * @return 24 values, index 0 being midnight to 1 AM
+     */
+    public long[] getClinicLoadByHour(LocalDate from, LocalDate to) {
+        long[] load = new long[24];
+        for (Stripe stripe : clinic) {
+            stripe.lock.lock();
+            try {
+                for (int hour = 0; hour < 24; hour++) {
+                    load[hour] += stripe.byHour[hour].sum(dayOf(from), dayOf(to));
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return load;
+    }
+
+    // Private helper methods
+
+    private void update(String username, Appointment apt, int sign) {
+        if (userManager != null && !counted.contains(username)) {
+            // First event for a diary that has not been counted yet. The
+            // event fires under the diary's lock after the change, so
+            // counting the diary now already includes it. A deleted user
+            // is no longer in the manager and has nothing left to count.
+            User user = userManager.getUser(username);
+            if (user != null && user.getLock().isHeldByCurrentThread()) {
+                countExisting(user);
+            }
+            return;
+        }
+        record(username, apt, sign);
+    }
+
+    /**
+     * Counts a user's current diary once. Must be called with the user's
+     * diary lock held.
+     */
+    private void countExisting(User user) {
+        if (counted.add(user.getUsername())) {
+            user.forEachAppointment(apt -> record(user.getUsername(), apt, 1));
+        }
+    }
+
+    private void record(String username, Appointment apt, int sign) {
+        int day = dayOf(apt.getDate());
+        int start = DateTimeUtils.toMinuteOfDay(apt.getStartTime());
+        int end = DateTimeUtils.toMinuteOfDay(apt.getEndTime());
+        if (end <= start) {
+            return;
+        }
+
+        PrefixSumSeries userSeries =
+            dailyByUser.computeIfAbsent(username, name -> new PrefixSumSeries());
+        synchronized (userSeries) {
+            userSeries.add(day, sign * (end - start));
+        }
+
+        Stripe stripe = clinic[(int) (Thread.currentThread().getId() % STRIPES)];
+        stripe.lock.lock();
+        try {
+            stripe.daily.add(day, sign * (end - start));
+            for (int hour = start / 60; hour * 60 < end; hour++) {
+                int overlap = Math.min(end, (hour + 1) * 60) - Math.max(start, hour * 60);
+                stripe.byHour[hour].add(day, sign * overlap);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Sums a user's series, or the clinic-wide one, between consecutive
+     * bucket start dates.
+     */
+    private long[] bucketed(String username, LocalDate[] starts) {
+        long[] result = new long[Math.max(0, starts.length - 1)];
+        if (username != null) {
+            PrefixSumSeries series = dailyByUser.get(username);
+            if (series != null) {
+                synchronized (series) {
+                    addBuckets(series, starts, result);
+                }
+            }
+            return result;
+        }
+        for (Stripe stripe : clinic) {
+            stripe.lock.lock();
+            try {
+                addBuckets(stripe.daily, starts, result);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    private static void addBuckets(PrefixSumSeries series, LocalDate[] starts, long[] result) {
+        for (int i = 0; i < result.length; i++) {
+            result[i] += series.sum(dayOf(starts[i]), dayOf(starts[i + 1]) - 1);
+        }
+    }
+
+    private static int dayOf(LocalDate date) {
+        return (int) date.toEpochDay();
+    }
+
+    /**
+     * One slice of the clinic-wide counters.
+     */
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final PrefixSumSeries daily = new PrefixSumSeries();
+        final PrefixSumSeries[] byHour = new PrefixSumSeries[24];
+
+        Stripe() {
+            for (int hour = 0; hour < 24; hour++) {
+                byHour[hour] = new PrefixSumSeries();
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Self-check for UtilizationStats under concurrent churn. Booking threads
+ * schedule, cancel and reschedule single and group appointments and now
+ * and then delete and re-add a patient, while a dashboard thread keeps
+ * querying. The stats are attached to a UserManager that already holds
+ * appointments, in the middle of the churn. Afterwards every counter is
+ * compared with a recount over all diaries.
+ *
+ * Usage: java UtilizationStatsCheck [threads] [seconds] [patients] [doctors]
+ */
+public class UtilizationStatsCheck {
+    private static final LocalTime OPENING = LocalTime.of(8, 0);
+    private static final int SLOT_MINUTES = 15;
+    private static final int SLOTS_PER_DAY = 40;
+
+    private final int patients;
+    private final int doctors;
+    private final List<LocalDate> days;
+    private final UserManager manager;
+
+    public UtilizationStatsCheck(int patients, int doctors, List<LocalDate> days) {
+        this.patients = patients;
+        this.doctors = doctors;
+        this.days = days;
+        this.manager = new UserManager();
+        for (int i = 0; i < patients; i++) {
+            manager.addUser("patient" + i);
+        }
+        for (int i = 0; i < doctors; i++) {
+            manager.addUser("doctor" + i);
+        }
+    }
+
+    /**
+     * Runs the churn with the given number of threads and checks the
+     * counters against a recount.
+     * @param threads Number of booking threads
+     * @param seconds Duration of the churn
+     * @return true if every counter matched
+     */
+    public boolean run(int threads, int seconds) throws InterruptedException {
+        AtomicLong ops = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = 17L * t + 3;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (!stop.get()) {
+                    churn(random);
+                    ops.incrementAndGet();
+                }
+            }, "churn-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        // Attach while the diaries already hold appointments and keep changing
+        Thread.sleep(seconds * 250L);
+        UtilizationStats stats = new UtilizationStats(manager);
+
+        Thread dashboard = new Thread(() -> {
+            Random random = new Random(99);
+            while (!stop.get()) {
+                String username = "doctor" + random.nextInt(doctors);
+                stats.getDailyMinutes(username, days.get(0), days.size());
+                stats.getWeeklyMinutes(null, days.get(0), 4);
+                stats.getClinicLoadByHour(days.get(0), days.get(days.size() - 1));
+            }
+        }, "dashboard");
+        dashboard.start();
+
+        Thread.sleep(seconds * 750L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        dashboard.join();
+        double elapsed = (System.nanoTime() - began) / 1e9;
+
+        int mismatches = compare(stats);
+        System.out.printf("threads=%-3d ops/s=%,12.0f mismatches=%d%n",
+            threads, ops.get() / elapsed, mismatches);
+        return mismatches == 0;
+    }
+
+    private void churn(Random random) {
+        LocalDate date = days.get(random.nextInt(days.size()));
+        LocalTime startTime = OPENING.plusMinutes((long) random.nextInt(SLOTS_PER_DAY) * SLOT_MINUTES);
+        LocalTime endTime = startTime.plusMinutes(SLOT_MINUTES * (1 + random.nextInt(4)));
+        String patient = "patient" + random.nextInt(patients);
+        String doctor = "doctor" + random.nextInt(doctors);
+
+        int choice = random.nextInt(100);
+        if (choice < 35) {
+            Diary diary = manager.getUser(patient);
+            if (diary != null) {
+                diary.scheduleAppointment(date, startTime, endTime, "Checkup");
+            }
+        } else if (choice < 60) {
+            manager.scheduleGroupAppointment(Arrays.asList(patient, doctor), date, startTime,
+                                             endTime, "Consultation");
+        } else if (choice < 80) {
+            Diary diary = manager.getUser(random.nextBoolean() ? patient : doctor);
+            Appointment apt = diary == null ? null : diary.findAppointment(date, startTime);
+            if (apt != null) {
+                diary.cancelAppointment(apt.getDate(), apt.getStartTime());
+            }
+        } else if (choice < 99) {
+            Diary diary = manager.getUser(random.nextBoolean() ? patient : doctor);
+            Appointment apt = diary == null ? null : diary.findAppointment(date, startTime);
+            if (apt != null) {
+                LocalDate newDate = days.get(random.nextInt(days.size()));
+                if (random.nextBoolean()) {
+                    diary.rescheduleAppointment(apt.getDate(), apt.getStartTime(), newDate,
+                                                startTime.plusMinutes(SLOT_MINUTES), endTime);
+                } else {
+                    manager.rescheduleAppointment(diary.getUsername(), apt.getDate(),
+                                                  apt.getStartTime(), newDate, startTime, endTime);
+                }
+            }
+        } else {
+            manager.deleteUser(patient);
+            manager.addUser(patient);
+        }
+    }
+
+    /**
+     * Recounts every user's booked minutes per day and the clinic-wide
+     * minutes per day and per hour, and counts the counters that differ.
+     */
+    private int compare(UtilizationStats stats) {
+        LocalDate first = days.get(0);
+        LocalDate last = days.get(days.size() - 1);
+        long[] clinicDaily = new long[days.size()];
+        long[] clinicHourly = new long[24];
+        int mismatches = 0;
+
+        List<String> usernames = manager.getAllUsernames();
+        for (String username : usernames) {
+            long[] daily = new long[days.size()];
+            for (Appointment apt : manager.getUser(username).getAppointments()) {
+                int start = apt.getStartTime().getHour() * 60 + apt.getStartTime().getMinute();
+                int end = apt.getEndTime().getHour() * 60 + apt.getEndTime().getMinute();
+                int index = (int) (apt.getDate().toEpochDay() - first.toEpochDay());
+                daily[index] += end - start;
+                clinicDaily[index] += end - start;
+                for (int minute = start; minute < end; minute++) {
+                    clinicHourly[minute / 60]++;
+                }
+            }
+            if (!Arrays.equals(daily, stats.getDailyMinutes(username, first, days.size()))) {
+                mismatches++;
+            }
+        }
+        if (!Arrays.equals(clinicDaily, stats.getDailyMinutes(null, first, days.size()))) {
+            mismatches++;
+        }
+        if (!Arrays.equals(clinicHourly, stats.getClinicLoadByHour(first, last))) {
+            mismatches++;
+        }
+        return mismatches;
+    }
+
+    /**
+     * Main entry point for the check.
+     * @param args Optional threads, seconds, patients, doctors
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0])
+                                       : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int patients = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int doctors = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        List<LocalDate> days = DateTimeUtils.getBookableDays(14);
+        if (days.isEmpty()) {
+            System.out.println("No bookable dates left before " + DateTimeUtils.getMaxDate());
+            return;
+        }
+
+        UtilizationStatsCheck check = new UtilizationStatsCheck(patients, doctors, days);
+        if (!check.run(threads, seconds)) {
+            System.exit(1);
+        }
+    }
+}